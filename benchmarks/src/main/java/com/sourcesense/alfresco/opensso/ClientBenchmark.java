@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.opensso;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import com.sourcesense.alfresco.opensso.RequestRouter.Route;
+import com.sourcesense.alfresco.opensso.SessionActionClassifier.Action;
+
+/**
+ * Helpers on the filter hot path: group name extraction, login/logout
+ * classification, URL routing and redirect URL building
+ * 
+ * @author g.fernandes@sourcesense.com
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ClientBenchmark {
+
+	private static final int GROUPS = 20;
+
+	private OpenSSOClient openSSOClient;
+	private AlfrescoOpenSSOFilter filter;
+	private RequestRouter router;
+	private Set<String> fqGroups;
+	private MockHttpServletRequest formPost;
+	private MockHttpServletRequest multipartPost;
+	private MockHttpServletRequest page;
+
+	@Setup
+	public void setUp() {
+		openSSOClient = new MockOpenSSOClient("user1");
+		filter = new AlfrescoOpenSSOFilter();
+		router = new RequestRouter(Route.GUEST);
+		router.addPatterns("/css/* /images/* /scripts/* /res/* /themes/* *.css *.js *.gif *.png *.jpg *.ico", Route.BYPASS);
+
+		fqGroups = new HashSet<String>();
+		for (int i = 0; i < GROUPS; i++) {
+			fqGroups.add("cn=group" + i + ",ou=groups,dc=opensso,dc=java,dc=net");
+		}
+
+		formPost = new MockHttpServletRequest("POST", "/alfresco/faces/jsp/browse/browse.jsp");
+		formPost.setContentType("application/x-www-form-urlencoded");
+		formPost.addParameter("browse:modelist", "");
+		formPost.addParameter("browse:spaces-pager", "1");
+		formPost.addParameter("browse:act", "browse:logout");
+		formPost.addParameter("javax.faces.ViewState", "j_id2:j_id3");
+
+		multipartPost = new MockHttpServletRequest("POST", "/alfresco/faces/jsp/content/add-content-dialog.jsp");
+		multipartPost.setContentType("multipart/form-data; boundary=----boundary");
+		multipartPost.setContent(new byte[64 * 1024]);
+
+		page = new MockHttpServletRequest("GET", "/alfresco/faces/jsp/browse/browse.jsp");
+		page.setContextPath("/alfresco");
+		page.setQueryString("id=386f7ece-4127-42b5-8543-3de2e2a20d7e");
+	}
+
+	@Benchmark
+	public List<String> extractGroupNames() {
+		return openSSOClient.extractGroupNameFromFQGroup(fqGroups);
+	}
+
+	@Benchmark
+	public Action classifyFormPost() {
+		return SessionActionClassifier.classify(formPost);
+	}
+
+	@Benchmark
+	public Action classifyMultipartPost() {
+		return SessionActionClassifier.classify(multipartPost);
+	}
+
+	@Benchmark
+	public Action classifyQueryString() {
+		return SessionActionClassifier.classify(page);
+	}
+
+	@Benchmark
+	public Route routeStaticResource() {
+		return router.route("/images/filetypes/doc.gif");
+	}
+
+	@Benchmark
+	public Route routePage() {
+		return router.route(page);
+	}
+
+	@Benchmark
+	public String buildURLForRedirect() {
+		return filter.buildURLForRedirect(page);
+	}
+}
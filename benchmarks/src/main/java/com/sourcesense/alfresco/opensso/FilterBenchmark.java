@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.opensso;
+
+import static org.easymock.classextension.EasyMock.createMock;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockFilterConfig;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockHttpSession;
+import org.springframework.mock.web.MockServletContext;
+
+import com.iplanet.sso.SSOToken;
+
+/**
+ * Per-request cost of {@link AlfrescoOpenSSOFilter#doFilter} with OpenSSO and
+ * Alfresco mocked out, so that only the filter's own overhead is measured
+ * 
+ * @author g.fernandes@sourcesense.com
+ * 
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class FilterBenchmark {
+
+	private static final String USERNAME = "user1";
+	private static final String ALFRESCO_URI = "/alfresco/faces/jsp/browse/browse.jsp";
+
+	private static final FilterChain NOOP_CHAIN = new FilterChain() {
+		public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+		}
+	};
+
+	/**
+	 * OpenSSO client returning the same valid token for every request,
+	 * without creating a new mock each time
+	 */
+	static class PrebuiltTokenClient extends MockOpenSSOClient {
+
+		private final SSOToken token = createMock(SSOToken.class);
+
+		PrebuiltTokenClient(String username) {
+			super(username);
+			setTokenAlwaysValid();
+		}
+
+		@Override
+		public SSOToken createTokenFrom(HttpServletRequest request) {
+			return token;
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Filters {
+
+		AlfrescoOpenSSOFilter guestFilter;
+		AlfrescoOpenSSOFilter ssoFilter;
+
+		@Setup
+		public void setUp() throws ServletException {
+			guestFilter = newFilter(new MockOpenSSOClient(USERNAME));
+			ssoFilter = newFilter(new PrebuiltTokenClient(USERNAME));
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class GuestRequest {
+
+		MockHttpServletRequest request;
+		MockHttpServletResponse response;
+
+		@Setup
+		public void setUp() {
+			request = newRequest();
+			response = new MockHttpServletResponse();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class AuthenticatedRequest {
+
+		MockHttpServletRequest request;
+		MockHttpServletResponse response;
+
+		@Setup
+		public void setUp(Filters filters) throws IOException, ServletException {
+			request = newRequest();
+			response = new MockHttpServletResponse();
+			filters.ssoFilter.doFilter(request, response, NOOP_CHAIN);
+		}
+	}
+
+	/**
+	 * A principal never seen before on every invocation. Provisioning goes
+	 * through the in-memory {@link MockAlfrescoFacade} instead of the
+	 * repository, so only the filter and facade logic of a first login is
+	 * measured, not the person and group writes. The facade is replaced at
+	 * each iteration to bound the users it keeps.
+	 */
+	@State(Scope.Thread)
+	public static class FirstLoginRequest {
+
+		private static final AtomicInteger THREADS = new AtomicInteger();
+
+		final String principalPrefix = "first-login-" + THREADS.incrementAndGet() + "-";
+		final PrebuiltTokenClient client = new PrebuiltTokenClient(USERNAME);
+		AlfrescoOpenSSOFilter filter;
+		MockHttpServletRequest request;
+		MockHttpServletResponse response;
+		private long logins;
+
+		@Setup(Level.Iteration)
+		public void setUpFilter() throws ServletException {
+			filter = newFilter(client);
+		}
+
+		@Setup(Level.Invocation)
+		public void setUp() {
+			client.setUsername(principalPrefix + logins++);
+			request = newRequest();
+			response = new MockHttpServletResponse();
+		}
+	}
+
+	static AlfrescoOpenSSOFilter newFilter(OpenSSOClient openSSOClient) throws ServletException {
+		AlfrescoOpenSSOFilter filter = new AlfrescoOpenSSOFilter();
+		filter.init(new MockFilterConfig(new MockServletContext()));
+		filter.setAlfrescoFacade(new MockAlfrescoFacade());
+		filter.setOpenSSOClient(openSSOClient);
+		return filter;
+	}
+
+	static MockHttpServletRequest newRequest() {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", ALFRESCO_URI);
+		request.setContextPath("/alfresco");
+		request.setServletPath("/faces");
+		request.setPathInfo("/jsp/browse/browse.jsp");
+		request.setSession(new MockHttpSession());
+		return request;
+	}
+
+	@Benchmark
+	public MockHttpServletResponse guest(Filters filters, GuestRequest guest) throws IOException, ServletException {
+		filters.guestFilter.doFilter(guest.request, guest.response, NOOP_CHAIN);
+		return guest.response;
+	}
+
+	@Benchmark
+	public MockHttpServletResponse authenticated(Filters filters, AuthenticatedRequest authenticated) throws IOException, ServletException {
+		filters.ssoFilter.doFilter(authenticated.request, authenticated.response, NOOP_CHAIN);
+		return authenticated.response;
+	}
+
+	@Benchmark
+	public MockHttpServletResponse firstLogin(FirstLoginRequest firstLogin) throws IOException, ServletException {
+		firstLogin.filter.doFilter(firstLogin.request, firstLogin.response, NOOP_CHAIN);
+		return firstLogin.response;
+	}
+}
@@ -26,7 +26,6 @@ import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.HttpSession;
 
 import org.alfresco.connector.User;
 import org.alfresco.web.site.AuthenticationUtil;
@@ -39,10 +38,20 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.iplanet.sso.SSOToken;
+import com.sourcesense.alfresco.monitor.AuthenticationMetrics;
+import com.sourcesense.alfresco.opensso.RequestRouter.Route;
 
 public class AlfrescoShareFilter  implements Filter {
 	private static Log logger = LogFactory.getLog(AlfrescoShareFilter.class);
 
+	/**
+	 * Port of the cache invalidation bus, distinct from the webclient's so
+	 * that both webapps can be deployed in the same JVM
+	 */
+	public static final int DEFAULT_CLUSTER_PORT = 47811;
+
+	private RequestRouter router = new RequestRouter(Route.AUTHENTICATE);
+
 	public OpenSSOClient getOpenSSOClient() {
 		return OpenSSOClient.instance();
 	}
@@ -58,37 +67,58 @@ public class AlfrescoShareFilter  implements Filter {
 	}
 
 	public void init(FilterConfig config) throws ServletException {
+		router = RequestRouter.fromConfig(config, Route.AUTHENTICATE);
+		AuthenticationMetrics.getInstance().register(config.getServletContext().getServletContextName());
+		OpenSSOClient client = getOpenSSOClient();
+		client.joinCluster(DEFAULT_CLUSTER_PORT);
+		if (Boolean.parseBoolean(config.getInitParameter("warmUp"))) {
+			client.warmUp();
+		}
 	}
 	
-	private void doLogout(HttpSession httpSession, SSOToken token) {
+	private void doLogout(SSOToken token) {
 		getOpenSSOClient().destroyToken(token);
 	}
 
 	public void doFilter(ServletRequest sreq, ServletResponse sresp, FilterChain chain) throws IOException, ServletException {
 		HttpServletRequest req = (HttpServletRequest) sreq;
 		HttpServletResponse res = (HttpServletResponse) sresp;
-		HttpSession httpSession = req.getSession();
-		
-		SSOToken token = getOpenSSOClient().tokenFromRequest(req);
+
+		Route route = router.route(req);
+		if (route == Route.BYPASS) {
+			chain.doFilter(sreq, sresp);
+			return;
+		}
+
+		SSOToken token = null;
+		if (getOpenSSOClient().hasSessionCookie(req)) {
+			token = getOpenSSOClient().createTokenFrom(req);
+		}
 
 		if(isLogoutRequest(sreq)) {
-			doLogout(httpSession, token);
+			doLogout(token);
 			res.sendRedirect(buildURLForRedirect(sreq));
 		}
 		
-		try {
-			RequestContext context = RequestUtil.getRequestContext(req);
-			User user = context.getUser();
-			if(user != null && !user.getId().equals(UserFactory.USER_GUEST)) {
-				chain.doFilter(sreq, sresp);
-				return;
+		// a logged in user is kept in the session, and looking it up through
+		// the request context would create one for every anonymous request
+		if (req.getSession(false) != null) {
+			try {
+				RequestContext context = RequestUtil.getRequestContext(req);
+				User user = context.getUser();
+				if(user != null && !user.getId().equals(UserFactory.USER_GUEST)) {
+					chain.doFilter(sreq, sresp);
+					return;
+				}
+			} catch (RequestContextException e) {
+				e.printStackTrace();
 			}
-		} catch (RequestContextException e) {
-			e.printStackTrace();
 		}
 
 
-		if (token == null) {
+		if (token == null && route == Route.GUEST) {
+			chain.doFilter(sreq, sresp);
+		} else if (token == null) {
 			res.sendRedirect(buildURLForRedirect(req));
 		} else {
 			UserFactory userFactory = FrameworkHelper.getUserFactory();
@@ -110,7 +140,10 @@ public class AlfrescoShareFilter  implements Filter {
 		return false;
 	}
 
-	public void destroy() {	}
+	public void destroy() {
+		AuthenticationMetrics.getInstance().unregister();
+		getOpenSSOClient().shutdown();
+	}
 
 
 }
\ No newline at end of file
@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.opensso;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockFilterConfig;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+public class AlfrescoShareFilterTest {
+
+	private AlfrescoShareFilter filter;
+	private MockOpenSSOClient openSSOClient;
+
+	@Before
+	public void setUp() throws Exception {
+		openSSOClient = new MockOpenSSOClient("user1");
+		filter = new AlfrescoShareFilter() {
+			@Override
+			public OpenSSOClient getOpenSSOClient() {
+				return openSSOClient;
+			}
+
+			@Override
+			protected String getOpenSSOLoginURL() {
+				return "http://localhost:8080/opensso/UI/Login";
+			}
+		};
+		MockFilterConfig config = new MockFilterConfig();
+		config.addInitParameter(RequestRouter.PARAM_GUEST_PATTERNS, "/page/site-index");
+		filter.init(config);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		filter.destroy();
+	}
+
+	@Test
+	public void shouldNotCreateSessionForGuestRequest() throws Exception {
+		MockHttpServletRequest request = request("/page", "/site-index");
+		MockFilterChain chain = new MockFilterChain();
+
+		filter.doFilter(request, new MockHttpServletResponse(), chain);
+
+		assertNotNull(chain.getRequest());
+		assertNull(request.getSession(false));
+	}
+
+	@Test
+	public void shouldNotCreateSessionWhenRedirectingToLogin() throws Exception {
+		MockHttpServletRequest request = request("/page", "/user/dashboard");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		MockFilterChain chain = new MockFilterChain();
+
+		filter.doFilter(request, response, chain);
+
+		assertNull(chain.getRequest());
+		assertEquals("http://localhost:8080/opensso/UI/Login?goto=http://localhost:80/share", response.getRedirectedUrl());
+		assertNull(request.getSession(false));
+	}
+
+	private static MockHttpServletRequest request(String servletPath, String pathInfo) {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/share" + servletPath + pathInfo);
+		request.setContextPath("/share");
+		request.setServletPath(servletPath);
+		request.setPathInfo(pathInfo);
+		return request;
+	}
+}
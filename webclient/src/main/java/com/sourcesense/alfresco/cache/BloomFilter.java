@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.cache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe Bloom filter of strings. A negative answer is definite, a
+ * positive one is wrong with about the configured probability, so callers
+ * must be able to recover from a false positive.
+ * 
+ * @author g.fernandes@sourcesense.com
+ * 
+ */
+public class BloomFilter {
+
+	private final AtomicLongArray bits;
+	private final int bitCount;
+	private final int hashCount;
+	private final AtomicInteger insertions = new AtomicInteger();
+
+	/**
+	 * @param expectedInsertions
+	 *            number of keys the filter is sized for
+	 * @param falsePositiveRate
+	 *            wanted false positive probability at that size
+	 */
+	public BloomFilter(int expectedInsertions, double falsePositiveRate) {
+		if (expectedInsertions <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+			throw new IllegalArgumentException("Invalid Bloom filter sizing: " + expectedInsertions + ", " + falsePositiveRate);
+		}
+		long optimalBits = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		this.bitCount = (int) Math.min(Math.max(optimalBits, 64), Integer.MAX_VALUE - 63);
+		this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedInsertions * Math.log(2)));
+		this.bits = new AtomicLongArray((bitCount + 63) >>> 6);
+	}
+
+	public void put(String key) {
+		long hash = hash64(key);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		boolean changed = false;
+		for (int i = 1; i <= hashCount; i++) {
+			changed |= setBit(indexOf(h1 + i * h2));
+		}
+		if (changed) {
+			insertions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return false if the key was certainly never put, true if it probably
+	 *         was
+	 */
+	public boolean mightContain(String key) {
+		long hash = hash64(key);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 1; i <= hashCount; i++) {
+			int index = indexOf(h1 + i * h2);
+			if ((bits.get(index >>> 6) & (1L << index)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public void clear() {
+		for (int i = 0; i < bits.length(); i++) {
+			bits.set(i, 0L);
+		}
+		insertions.set(0);
+	}
+
+	/**
+	 * @return approximate number of distinct keys put so far
+	 */
+	public int getInsertionCount() {
+		return insertions.get();
+	}
+
+	/**
+	 * @return size of the filter in bits
+	 */
+	public int getBitCount() {
+		return bitCount;
+	}
+
+	private int indexOf(int combinedHash) {
+		return (combinedHash & Integer.MAX_VALUE) % bitCount;
+	}
+
+	private boolean setBit(int index) {
+		int word = index >>> 6;
+		long mask = 1L << index;
+		long current;
+		do {
+			current = bits.get(word);
+			if ((current & mask) != 0) {
+				return false;
+			}
+		} while (!bits.compareAndSet(word, current, current | mask));
+		return true;
+	}
+
+	/**
+	 * 64 bit FNV-1a over the characters, finalized with a MurmurHash3 mix so
+	 * that both halves are well distributed
+	 */
+	static long hash64(String key) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			hash ^= key.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
@@ -0,0 +1,205 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded cache with expire-after-write TTL and frequency-aware
+ * eviction: when a segment is full, a new key is only admitted if it is
+ * requested more often than the least recently used entry it would replace.
+ * This keeps a few hot keys cached under a flood of one-off keys.
+ * 
+ * @author g.fernandes@sourcesense.com
+ * 
+ * @param <K>
+ * @param <V>
+ */
+public class FrequencyCache<K, V> implements FrequencyCacheMBean {
+
+	private static final int MAX_SEGMENTS = 16;
+	private static final int MIN_SEGMENT_CAPACITY = 64;
+	private static final int EXPIRED_SCAN_LIMIT = 8;
+
+	private final Segment<K, V>[] segments;
+	private final FrequencySketch sketch;
+	private final long timeToLive;
+	private final int maxEntries;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param maxEntries
+	 * @param timeToLive
+	 *            time in millis an entry stays valid after being written
+	 */
+	@SuppressWarnings("unchecked")
+	public FrequencyCache(int maxEntries, long timeToLive) {
+		if (maxEntries <= 0) {
+			throw new IllegalArgumentException("maxEntries must be positive");
+		}
+		this.maxEntries = maxEntries;
+		this.timeToLive = timeToLive;
+		this.sketch = new FrequencySketch(maxEntries);
+		int segmentCount = 1;
+		while (segmentCount < MAX_SEGMENTS && maxEntries / (segmentCount * 2) >= MIN_SEGMENT_CAPACITY) {
+			segmentCount <<= 1;
+		}
+		int segmentCapacity = (maxEntries + segmentCount - 1) / segmentCount;
+		this.segments = new Segment[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			segments[i] = new Segment<K, V>(segmentCapacity);
+		}
+	}
+
+	public V get(K key) {
+		sketch.increment(key);
+		Segment<K, V> segment = segmentFor(key);
+		synchronized (segment) {
+			Entry<V> entry = segment.entries.get(key);
+			if (entry != null && entry.expiresAt > System.currentTimeMillis()) {
+				hits.incrementAndGet();
+				return entry.value;
+			}
+			if (entry != null) {
+				segment.entries.remove(key);
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	public void put(K key, V value) {
+		long now = System.currentTimeMillis();
+		Segment<K, V> segment = segmentFor(key);
+		synchronized (segment) {
+			if (!segment.entries.containsKey(key) && segment.entries.size() >= segment.capacity) {
+				if (!evictFor(segment, key, now)) {
+					return;
+				}
+			}
+			segment.entries.put(key, new Entry<V>(value, now + timeToLive));
+		}
+	}
+
+	/**
+	 * Frees one slot in the segment for the candidate key, preferring an
+	 * expired entry among the least recently used ones
+	 * 
+	 * @return false if the candidate is less popular than the victim and
+	 *         must not be admitted
+	 */
+	private boolean evictFor(Segment<K, V> segment, K candidate, long now) {
+		Iterator<Map.Entry<K, Entry<V>>> iterator = segment.entries.entrySet().iterator();
+		for (int scanned = 0; scanned < EXPIRED_SCAN_LIMIT && iterator.hasNext(); scanned++) {
+			if (iterator.next().getValue().expiresAt <= now) {
+				iterator.remove();
+				return true;
+			}
+		}
+		iterator = segment.entries.entrySet().iterator();
+		Map.Entry<K, Entry<V>> victim = iterator.next();
+		if (sketch.frequency(candidate) <= sketch.frequency(victim.getKey())) {
+			return false;
+		}
+		iterator.remove();
+		evictions.incrementAndGet();
+		return true;
+	}
+
+	public void remove(K key) {
+		Segment<K, V> segment = segmentFor(key);
+		synchronized (segment) {
+			segment.entries.remove(key);
+		}
+	}
+
+	public void clear() {
+		for (Segment<K, V> segment : segments) {
+			synchronized (segment) {
+				segment.entries.clear();
+			}
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment<K, V> segment : segments) {
+			synchronized (segment) {
+				size += segment.entries.size();
+			}
+		}
+		return size;
+	}
+
+	public int getSize() {
+		return size();
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	public double getHitRate() {
+		long hitCount = hits.get();
+		long requests = hitCount + misses.get();
+		return requests == 0 ? 0 : (double) hitCount / requests;
+	}
+
+	private Segment<K, V> segmentFor(Object key) {
+		int hash = key.hashCode();
+		hash ^= (hash >>> 16);
+		return segments[hash & (segments.length - 1)];
+	}
+
+	private static class Entry<V> {
+		final V value;
+		final long expiresAt;
+
+		Entry(V value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private static class Segment<K, V> {
+		final int capacity;
+		final LinkedHashMap<K, Entry<V>> entries;
+
+		Segment(int capacity) {
+			this.capacity = capacity;
+			this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.cache;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Approximate access frequency of keys (count-min sketch), halved
+ * periodically so that old popularity fades out
+ * 
+ * @author g.fernandes@sourcesense.com
+ * 
+ */
+class FrequencySketch {
+
+	private static final int DEPTH = 4;
+	private static final int MAX_COUNT = 15;
+	private static final int MIN_WIDTH = 256;
+	private static final int[] SEEDS = { 0x97cb3127, 0x3c6ef372, 0xa54ff53a, 0x510e527f };
+
+	private final AtomicIntegerArray counters;
+	private final int mask;
+	private final int resetThreshold;
+	private final AtomicInteger additions = new AtomicInteger();
+
+	FrequencySketch(int expectedEntries) {
+		int width = 1;
+		while (width < Math.max(expectedEntries, MIN_WIDTH)) {
+			width <<= 1;
+		}
+		this.mask = width - 1;
+		this.counters = new AtomicIntegerArray(width * DEPTH);
+		this.resetThreshold = width * 10;
+	}
+
+	void increment(Object key) {
+		int hash = spread(key.hashCode());
+		boolean added = false;
+		for (int i = 0; i < DEPTH; i++) {
+			int index = indexOf(hash, i);
+			int count = counters.get(index);
+			if (count < MAX_COUNT && counters.compareAndSet(index, count, count + 1)) {
+				added = true;
+			}
+		}
+		if (added && additions.incrementAndGet() >= resetThreshold) {
+			reset();
+		}
+	}
+
+	int frequency(Object key) {
+		int hash = spread(key.hashCode());
+		int frequency = MAX_COUNT;
+		for (int i = 0; i < DEPTH; i++) {
+			frequency = Math.min(frequency, counters.get(indexOf(hash, i)));
+		}
+		return frequency;
+	}
+
+	private void reset() {
+		additions.set(0);
+		for (int i = 0; i < counters.length(); i++) {
+			int count;
+			do {
+				count = counters.get(i);
+			} while (!counters.compareAndSet(i, count, count >>> 1));
+		}
+	}
+
+	private int indexOf(int hash, int row) {
+		int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+		h ^= h >>> 16;
+		return row * (mask + 1) + (h & mask);
+	}
+
+	private static int spread(int hash) {
+		hash ^= hash >>> 17;
+		hash *= 0xed5ad4bb;
+		hash ^= hash >>> 11;
+		return hash;
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, concurrent {@link TokenCache} kept on the heap. Entries are split
+ * in segments, each an access-ordered map guarded by its own monitor, so that
+ * making room for a new token only drops the least recently used one of its
+ * segment instead of scanning the whole cache.
+ * 
+ * @author g.fernandes@sourcesense.com
+ * 
+ */
+public class InMemoryTokenCache implements TokenCache, InMemoryTokenCacheMBean {
+
+	private static final int MAX_SEGMENTS = 16;
+	private static final int MIN_SEGMENT_CAPACITY = 64;
+
+	private final Segment[] segments;
+	private final int maxEntries;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public InMemoryTokenCache(int maxEntries) {
+		if (maxEntries <= 0) {
+			throw new IllegalArgumentException("maxEntries must be positive");
+		}
+		this.maxEntries = maxEntries;
+		int segmentCount = 1;
+		while (segmentCount < MAX_SEGMENTS && maxEntries / (segmentCount * 2) >= MIN_SEGMENT_CAPACITY) {
+			segmentCount <<= 1;
+		}
+		this.segments = new Segment[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			segments[i] = new Segment(maxEntries / segmentCount);
+		}
+	}
+
+	public boolean contains(String tokenId) {
+		Segment segment = segmentFor(tokenId);
+		synchronized (segment) {
+			Long expiresAt = segment.get(tokenId);
+			if (expiresAt == null) {
+				misses.incrementAndGet();
+				return false;
+			}
+			if (expiresAt.longValue() <= System.currentTimeMillis()) {
+				segment.remove(tokenId);
+				misses.incrementAndGet();
+				return false;
+			}
+		}
+		hits.incrementAndGet();
+		return true;
+	}
+
+	public void put(String tokenId, long expiresAt) {
+		if (expiresAt <= System.currentTimeMillis()) {
+			return;
+		}
+		Segment segment = segmentFor(tokenId);
+		synchronized (segment) {
+			segment.put(tokenId, expiresAt);
+		}
+	}
+
+	public void remove(String tokenId) {
+		Segment segment = segmentFor(tokenId);
+		synchronized (segment) {
+			segment.remove(tokenId);
+		}
+	}
+
+	public void clear() {
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	public int getSize() {
+		return size();
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	private Segment segmentFor(String tokenId) {
+		int hash = tokenId.hashCode();
+		hash ^= (hash >>> 16);
+		return segments[hash & (segments.length - 1)];
+	}
+
+	/**
+	 * Access-ordered map dropping its least recently used entry when over
+	 * capacity; that entry is usually expired already
+	 */
+	private class Segment extends LinkedHashMap<String, Long> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int capacity;
+
+		Segment(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			if (size() <= capacity) {
+				return false;
+			}
+			if (eldest.getValue().longValue() > System.currentTimeMillis()) {
+				evictions.incrementAndGet();
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,440 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * {@link TokenCache} in a memory-mapped file, shared by every webapp and JVM
+ * on the host mapping the same file: a token validated by the webclient is
+ * known to Share and the other way round.
+ * <p>
+ * The layout follows {@link OffHeapTokenCache}, sets of fixed-size slots
+ * addressed by the 64 bit hash of the token ID, but no lock can be shared
+ * between processes, so slots are updated lock-free under a seqlock. Writers
+ * make the slot sequence odd, write, then make it even again; readers retry
+ * when the sequence is odd or changed while reading. Nothing orders the
+ * plain buffer accesses of different processes, so the sequence only
+ * narrows the window: each slot also stores a MAC of hash, expiration and
+ * token ID, and a slot whose MAC does not match what the reader sees is a
+ * miss. A torn or interleaved write therefore only costs a remote
+ * validation. The race left is benign but real: a token removed by another
+ * process may still be seen for the few instructions the write takes, and
+ * of two writers racing on a slot only one entry survives.
+ * <p>
+ * Any process able to write the file could make tokens look validated, so
+ * the file is created readable and writable by its owner only, and entries
+ * are signed (truncated HMAC-SHA256) with a key shared by the webapps using
+ * the file: without the key, an entry cannot be forged, only erased or
+ * replayed, and an expiration read back is never trusted beyond the
+ * configured time to live. The file is sized and stamped with its geometry
+ * by the first process opening it; later ones must be configured with the
+ * same size.
+ * 
+ * @author g.fernandes@sourcesense.com
+ * 
+ */
+public class MappedFileTokenCache implements TokenCache, MappedFileTokenCacheMBean {
+
+	private static Log logger = LogFactory.getLog(MappedFileTokenCache.class);
+
+	public static final int SLOT_SIZE = 192;
+	public static final int WAYS = 8;
+
+	private static final int MAGIC = 0x4f53544b;
+	private static final int VERSION = 3;
+	private static final int HEADER_SIZE = 64;
+
+	private static final int SEQUENCE = 0;
+	private static final int HASH = 8;
+	private static final int EXPIRES_AT = 16;
+	private static final int MAC_HIGH = 24;
+	private static final int MAC_LOW = 32;
+	private static final int KEY_LENGTH = 40;
+	private static final int KEY = 42;
+	public static final int MAX_KEY_LENGTH = SLOT_SIZE - KEY;
+
+	private static final int READ_ATTEMPTS = 4;
+	private static final String ALGORITHM = "HmacSHA256";
+
+	private final MappedByteBuffer buffer;
+	private final int sets;
+	private final long timeToLive;
+	private final File file;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final ThreadLocal<Mac> macs;
+
+	/**
+	 * @param file
+	 *            created if missing
+	 * @param maxEntries
+	 *            rounded up to a multiple of {@link #WAYS}
+	 * @param timeToLive
+	 *            millis after which any entry must be validated again,
+	 *            whatever expiration was written in the file
+	 * @param key
+	 *            secret signing the entries, shared by the webapps mapping
+	 *            the file
+	 * @throws IOException
+	 *             if the file cannot be mapped, or was created by another
+	 *             process with a different size
+	 */
+	public MappedFileTokenCache(File file, int maxEntries, long timeToLive, byte[] key) throws IOException {
+		if (maxEntries <= 0 || timeToLive <= 0) {
+			throw new IllegalArgumentException("maxEntries and timeToLive must be positive");
+		}
+		if (key == null || key.length < 16) {
+			throw new IllegalArgumentException("Signing key must be at least 16 bytes long");
+		}
+		if ((long) maxEntries * SLOT_SIZE > Integer.MAX_VALUE - HEADER_SIZE - WAYS * SLOT_SIZE) {
+			throw new IllegalArgumentException("maxEntries exceeds the size of a mapped buffer");
+		}
+		this.file = file;
+		this.timeToLive = timeToLive;
+		this.sets = (maxEntries + WAYS - 1) / WAYS;
+		final SecretKeySpec keySpec = new SecretKeySpec(key, ALGORITHM);
+		this.macs = new ThreadLocal<Mac>() {
+			@Override
+			protected Mac initialValue() {
+				try {
+					Mac mac = Mac.getInstance(ALGORITHM);
+					mac.init(keySpec);
+					return mac;
+				} catch (GeneralSecurityException e) {
+					throw new IllegalStateException(ALGORITHM + " not available", e);
+				}
+			}
+		};
+		macs.get();
+		int size = HEADER_SIZE + sets * WAYS * SLOT_SIZE;
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = randomAccessFile.getChannel();
+			FileLock lock = lock(channel);
+			try {
+				if (channel.size() == 0) {
+					restrictToOwner(file);
+					randomAccessFile.setLength(size);
+					buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+					buffer.putInt(4, VERSION);
+					buffer.putInt(8, SLOT_SIZE);
+					buffer.putInt(12, sets);
+					buffer.putInt(0, MAGIC);
+					buffer.force();
+				} else {
+					if (channel.size() != size) {
+						throw new IOException(file + " is shared with a cache of a different size");
+					}
+					buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+					if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(8) != SLOT_SIZE || buffer.getInt(12) != sets) {
+						throw new IOException(file + " is not a token cache of this version and size");
+					}
+				}
+			} finally {
+				lock.release();
+			}
+		} finally {
+			// the mapping stays valid after the channel is closed
+			randomAccessFile.close();
+		}
+		logger.info("Mapped " + (size >> 10) + "KB of " + file + " for " + getMaxEntries() + " tokens");
+	}
+
+	/**
+	 * Done before anything is written to the new file
+	 */
+	private static void restrictToOwner(File file) throws IOException {
+		boolean restricted = file.setReadable(false, false) & file.setWritable(false, false);
+		restricted &= file.setReadable(true, true) & file.setWritable(true, true);
+		if (!restricted) {
+			throw new IOException("Unable to restrict access to " + file + " to its owner");
+		}
+	}
+
+	/**
+	 * Serializes the creation of the file between processes and between the
+	 * webapps of this JVM, which cannot share a file lock
+	 */
+	private static FileLock lock(FileChannel channel) throws IOException {
+		while (true) {
+			try {
+				return channel.lock();
+			} catch (OverlappingFileLockException e) {
+				try {
+					Thread.sleep(10);
+				} catch (InterruptedException interrupted) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while locking the token cache file");
+				}
+			}
+		}
+	}
+
+	public boolean contains(String tokenId) {
+		long hash = OffHeapTokenCache.hash(tokenId, MAX_KEY_LENGTH);
+		if (hash != 0) {
+			int slot = find(setOf(hash), hash, tokenId);
+			if (slot >= 0) {
+				hits.incrementAndGet();
+				return true;
+			}
+		}
+		misses.incrementAndGet();
+		return false;
+	}
+
+	public void put(String tokenId, long expiresAt) {
+		long hash = OffHeapTokenCache.hash(tokenId, MAX_KEY_LENGTH);
+		long now = System.currentTimeMillis();
+		if (hash == 0 || expiresAt <= now) {
+			return;
+		}
+		int set = setOf(hash);
+		int slot = find(set, hash, tokenId);
+		if (slot < 0) {
+			slot = victim(set, now);
+		}
+		byte[] mac = sign(hash, expiresAt, tokenId);
+		long sequence = beginWrite(slot);
+		buffer.putLong(slot + HASH, hash);
+		buffer.putLong(slot + EXPIRES_AT, expiresAt);
+		buffer.putLong(slot + MAC_HIGH, toLong(mac, 0));
+		buffer.putLong(slot + MAC_LOW, toLong(mac, 8));
+		buffer.putShort(slot + KEY_LENGTH, (short) tokenId.length());
+		for (int i = 0; i < tokenId.length(); i++) {
+			buffer.put(slot + KEY + i, (byte) tokenId.charAt(i));
+		}
+		endWrite(slot, sequence);
+	}
+
+	/**
+	 * Frees the slots holding the token ID, leaving alone the tokens whose
+	 * hash merely collides with it
+	 */
+	public void remove(String tokenId) {
+		long hash = OffHeapTokenCache.hash(tokenId, MAX_KEY_LENGTH);
+		if (hash == 0) {
+			return;
+		}
+		int set = setOf(hash);
+		for (int way = 0; way < WAYS; way++) {
+			int slot = slotOf(set, way);
+			if (buffer.getLong(slot + HASH) == hash && keyEquals(slot, tokenId)) {
+				free(slot);
+			}
+		}
+	}
+
+	public void clear() {
+		for (int set = 0; set < sets; set++) {
+			for (int way = 0; way < WAYS; way++) {
+				int slot = slotOf(set, way);
+				if (buffer.getLong(slot + HASH) != 0) {
+					free(slot);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Scans the whole file, as entries are added by other processes too
+	 */
+	public int size() {
+		long now = System.currentTimeMillis();
+		int size = 0;
+		for (int set = 0; set < sets; set++) {
+			for (int way = 0; way < WAYS; way++) {
+				int slot = slotOf(set, way);
+				if (buffer.getLong(slot + HASH) != 0 && buffer.getLong(slot + EXPIRES_AT) > now) {
+					size++;
+				}
+			}
+		}
+		return size;
+	}
+
+	public int getSize() {
+		return size();
+	}
+
+	public int getMaxEntries() {
+		return sets * WAYS;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return bytes of the mapped file, whatever the number of entries
+	 */
+	public long getMemoryBytes() {
+		return buffer.capacity();
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * @return position of a consistent, unexpired slot holding the token ID,
+	 *         or -1
+	 */
+	private int find(int set, long hash, String tokenId) {
+		long now = System.currentTimeMillis();
+		for (int way = 0; way < WAYS; way++) {
+			int slot = slotOf(set, way);
+			for (int attempt = 0; attempt < READ_ATTEMPTS; attempt++) {
+				long sequence = buffer.getLong(slot + SEQUENCE);
+				if ((sequence & 1) != 0) {
+					continue;
+				}
+				boolean match = buffer.getLong(slot + HASH) == hash;
+				long expiresAt = buffer.getLong(slot + EXPIRES_AT);
+				match = match && keyEquals(slot, tokenId) && isSigned(slot, hash, expiresAt, tokenId);
+				if (buffer.getLong(slot + SEQUENCE) == sequence) {
+					if (match && expiresAt > now && expiresAt <= now + timeToLive) {
+						return slot;
+					}
+					break;
+				}
+			}
+		}
+		return -1;
+	}
+
+	private boolean keyEquals(int slot, String tokenId) {
+		int length = tokenId.length();
+		if (buffer.getShort(slot + KEY_LENGTH) != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (buffer.get(slot + KEY + i) != (byte) tokenId.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return a free or expired slot of the set if any, else the one expiring
+	 *         first
+	 */
+	private int victim(int set, long now) {
+		int victim = slotOf(set, 0);
+		long earliest = Long.MAX_VALUE;
+		for (int way = 0; way < WAYS; way++) {
+			int slot = slotOf(set, way);
+			if (buffer.getLong(slot + HASH) == 0) {
+				return slot;
+			}
+			long expiresAt = buffer.getLong(slot + EXPIRES_AT);
+			if (expiresAt < earliest) {
+				earliest = expiresAt;
+				victim = slot;
+			}
+		}
+		return victim;
+	}
+
+	private void free(int slot) {
+		long sequence = beginWrite(slot);
+		buffer.putLong(slot + HASH, 0);
+		buffer.putLong(slot + MAC_HIGH, 0);
+		buffer.putLong(slot + MAC_LOW, 0);
+		endWrite(slot, sequence);
+	}
+
+	/**
+	 * @return the odd sequence marking the slot as being written
+	 */
+	private long beginWrite(int slot) {
+		long sequence = buffer.getLong(slot + SEQUENCE);
+		sequence += (sequence & 1) == 0 ? 1 : 2;
+		buffer.putLong(slot + SEQUENCE, sequence);
+		return sequence;
+	}
+
+	private void endWrite(int slot, long sequence) {
+		buffer.putLong(slot + SEQUENCE, sequence + 1);
+	}
+
+	private boolean isSigned(int slot, long hash, long expiresAt, String tokenId) {
+		byte[] mac = sign(hash, expiresAt, tokenId);
+		long difference = buffer.getLong(slot + MAC_HIGH) ^ toLong(mac, 0);
+		difference |= buffer.getLong(slot + MAC_LOW) ^ toLong(mac, 8);
+		return difference == 0;
+	}
+
+	/**
+	 * Covers every field a reader relies on, so that a slot mixing the
+	 * writes of two processes is detected whatever the order they became
+	 * visible in, and a slot written without the key is rejected
+	 */
+	private byte[] sign(long hash, long expiresAt, String tokenId) {
+		Mac mac = macs.get();
+		byte[] data = new byte[16 + tokenId.length()];
+		putLong(data, 0, hash);
+		putLong(data, 8, expiresAt);
+		for (int i = 0; i < tokenId.length(); i++) {
+			data[16 + i] = (byte) tokenId.charAt(i);
+		}
+		return mac.doFinal(data);
+	}
+
+	private static void putLong(byte[] bytes, int offset, long value) {
+		for (int i = 7; i >= 0; i--) {
+			bytes[offset + i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+
+	private static long toLong(byte[] bytes, int offset) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (bytes[offset + i] & 0xff);
+		}
+		return value;
+	}
+
+	private int setOf(long hash) {
+		return (int) ((hash >>> 1) % sets);
+	}
+
+	private int slotOf(int set, int way) {
+		return HEADER_SIZE + (set * WAYS + way) * SLOT_SIZE;
+	}
+}
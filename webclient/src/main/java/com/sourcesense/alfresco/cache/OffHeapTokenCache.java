@@ -0,0 +1,269 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.cache;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * {@link TokenCache} stored outside the heap, in a direct buffer allocated
+ * once, so that hundreds of thousands of sessions neither grow the old
+ * generation nor produce garbage on lookup.
+ * <p>
+ * The buffer is split in sets of {@link #WAYS} fixed-size slots. A token ID
+ * is mapped to a set by its 64 bit hash and may live in any slot of the set;
+ * each slot holds the hash, the expiration and the token ID itself, compared
+ * in full on lookup. When a set is full the entry expiring first is evicted.
+ * Token IDs longer than {@link #MAX_KEY_LENGTH} or not in ASCII are never
+ * cached.
+ * <p>
+ * Sets are guarded by striped monitors; the direct memory used is fixed at
+ * construction and reported by {@link #getMemoryBytes()}.
+ * 
+ * @author g.fernandes@sourcesense.com
+ * 
+ */
+public class OffHeapTokenCache implements TokenCache, OffHeapTokenCacheMBean {
+
+	private static Log logger = LogFactory.getLog(OffHeapTokenCache.class);
+
+	public static final int SLOT_SIZE = 192;
+	public static final int WAYS = 8;
+
+	private static final int HASH = 0;
+	private static final int EXPIRES_AT = 8;
+	private static final int KEY_LENGTH = 16;
+	private static final int KEY = 18;
+	public static final int MAX_KEY_LENGTH = SLOT_SIZE - KEY;
+
+	private static final int LOCK_STRIPES = 256;
+
+	private final ByteBuffer buffer;
+	private final int sets;
+	private final Object[] locks = new Object[LOCK_STRIPES];
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param maxEntries
+	 *            rounded up to a multiple of {@link #WAYS}
+	 */
+	public OffHeapTokenCache(int maxEntries) {
+		if (maxEntries <= 0) {
+			throw new IllegalArgumentException("maxEntries must be positive");
+		}
+		if ((long) maxEntries * SLOT_SIZE > Integer.MAX_VALUE - WAYS * SLOT_SIZE) {
+			throw new IllegalArgumentException("maxEntries exceeds the size of a direct buffer");
+		}
+		this.sets = (maxEntries + WAYS - 1) / WAYS;
+		this.buffer = ByteBuffer.allocateDirect(sets * WAYS * SLOT_SIZE);
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+		logger.info("Allocated " + (getMemoryBytes() >> 10) + "KB of direct memory for " + getMaxEntries() + " tokens");
+	}
+
+	public boolean contains(String tokenId) {
+		long hash = hash(tokenId, MAX_KEY_LENGTH);
+		if (hash == 0) {
+			misses.incrementAndGet();
+			return false;
+		}
+		int set = setOf(hash);
+		long now = System.currentTimeMillis();
+		synchronized (lockOf(set)) {
+			int slot = find(set, hash, tokenId);
+			if (slot >= 0) {
+				if (buffer.getLong(slot + EXPIRES_AT) > now) {
+					hits.incrementAndGet();
+					return true;
+				}
+				free(slot);
+			}
+		}
+		misses.incrementAndGet();
+		return false;
+	}
+
+	public void put(String tokenId, long expiresAt) {
+		long hash = hash(tokenId, MAX_KEY_LENGTH);
+		long now = System.currentTimeMillis();
+		if (hash == 0 || expiresAt <= now) {
+			return;
+		}
+		int set = setOf(hash);
+		synchronized (lockOf(set)) {
+			int slot = find(set, hash, tokenId);
+			if (slot < 0) {
+				slot = victim(set, now);
+				if (buffer.getLong(slot + HASH) == 0) {
+					size.incrementAndGet();
+				}
+				buffer.putLong(slot + HASH, hash);
+				buffer.putShort(slot + KEY_LENGTH, (short) tokenId.length());
+				for (int i = 0; i < tokenId.length(); i++) {
+					buffer.put(slot + KEY + i, (byte) tokenId.charAt(i));
+				}
+			}
+			buffer.putLong(slot + EXPIRES_AT, expiresAt);
+		}
+	}
+
+	public void remove(String tokenId) {
+		long hash = hash(tokenId, MAX_KEY_LENGTH);
+		if (hash == 0) {
+			return;
+		}
+		int set = setOf(hash);
+		synchronized (lockOf(set)) {
+			int slot = find(set, hash, tokenId);
+			if (slot >= 0) {
+				free(slot);
+			}
+		}
+	}
+
+	public void clear() {
+		for (int set = 0; set < sets; set++) {
+			synchronized (lockOf(set)) {
+				for (int way = 0; way < WAYS; way++) {
+					int slot = slotOf(set, way);
+					if (buffer.getLong(slot + HASH) != 0) {
+						free(slot);
+					}
+				}
+			}
+		}
+	}
+
+	public int size() {
+		return size.get();
+	}
+
+	public int getSize() {
+		return size();
+	}
+
+	public int getMaxEntries() {
+		return sets * WAYS;
+	}
+
+	/**
+	 * @return direct memory held by the cache, whatever the number of entries
+	 */
+	public long getMemoryBytes() {
+		return buffer.capacity();
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * @return position of the slot holding the token ID in the set, or -1
+	 */
+	private int find(int set, long hash, String tokenId) {
+		for (int way = 0; way < WAYS; way++) {
+			int slot = slotOf(set, way);
+			if (buffer.getLong(slot + HASH) == hash && keyEquals(slot, tokenId)) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	private boolean keyEquals(int slot, String tokenId) {
+		int length = tokenId.length();
+		if (buffer.getShort(slot + KEY_LENGTH) != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (buffer.get(slot + KEY + i) != (byte) tokenId.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return a free or expired slot of the set if any, else the one expiring
+	 *         first
+	 */
+	private int victim(int set, long now) {
+		int victim = slotOf(set, 0);
+		long earliest = Long.MAX_VALUE;
+		for (int way = 0; way < WAYS; way++) {
+			int slot = slotOf(set, way);
+			if (buffer.getLong(slot + HASH) == 0) {
+				return slot;
+			}
+			long expiresAt = buffer.getLong(slot + EXPIRES_AT);
+			if (expiresAt < earliest) {
+				earliest = expiresAt;
+				victim = slot;
+			}
+		}
+		if (earliest > now) {
+			logger.debug("Token cache set full, evicting an entry still valid");
+		}
+		return victim;
+	}
+
+	private void free(int slot) {
+		buffer.putLong(slot + HASH, 0);
+		size.decrementAndGet();
+	}
+
+	private int setOf(long hash) {
+		return (int) ((hash >>> 1) % sets);
+	}
+
+	private int slotOf(int set, int way) {
+		return (set * WAYS + way) * SLOT_SIZE;
+	}
+
+	private Object lockOf(int set) {
+		return locks[set & (LOCK_STRIPES - 1)];
+	}
+
+	/**
+	 * @return the hash of a cacheable token ID, never 0 as it marks free
+	 *         slots, or 0 if the token ID cannot be cached
+	 */
+	static long hash(String tokenId, int maxKeyLength) {
+		int length = tokenId.length();
+		if (length > maxKeyLength) {
+			return 0;
+		}
+		for (int i = 0; i < length; i++) {
+			if (tokenId.charAt(i) > 0x7f) {
+				return 0;
+			}
+		}
+		long hash = BloomFilter.hash64(tokenId);
+		return hash == 0 ? 1 : hash;
+	}
+}
@@ -0,0 +1,52 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.cache;
+
+/**
+ * Cache of OpenSSO token IDs already validated against the OpenSSO server,
+ * so that requests in the same session can be decided locally
+ * 
+ * @author g.fernandes@sourcesense.com
+ * 
+ */
+public interface TokenCache {
+
+	/**
+	 * @param tokenId
+	 * @return true if the token was validated and its entry is not expired
+	 */
+	public boolean contains(String tokenId);
+
+	/**
+	 * Records a successful validation
+	 * 
+	 * @param tokenId
+	 * @param expiresAt
+	 *            time in millis after which the token must be validated again
+	 */
+	public void put(String tokenId, long expiresAt);
+
+	public void remove(String tokenId);
+
+	public void clear();
+
+	public int size();
+
+	public long getHitCount();
+
+	public long getMissCount();
+}
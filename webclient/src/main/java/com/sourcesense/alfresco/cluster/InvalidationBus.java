@@ -0,0 +1,57 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.cluster;
+
+/**
+ * Broadcasts cache evictions to the other webclient and Share nodes, so that
+ * per-node caches can keep long TTLs without serving stale entries. Evictions
+ * published here are not delivered back to the local listeners: the
+ * publisher has already applied them.
+ * 
+ * @author g.fernandes@sourcesense.com
+ * 
+ */
+public interface InvalidationBus {
+
+	/**
+	 * Kinds of cached data, each keyed by a token ID or a principal
+	 */
+	public enum Region {
+		/** a destroyed or timed out OpenSSO token, keyed by token ID */
+		TOKEN,
+		/** attributes and groups of a principal changed */
+		IDENTITY,
+		/** person or home space of a principal changed */
+		PERSON,
+		/** principal deleted or disabled */
+		PRINCIPAL
+	}
+
+	/**
+	 * Queues the eviction for the other nodes; never blocks on the network
+	 */
+	public void publish(Region region, String key);
+
+	public void addListener(InvalidationListener listener);
+
+	public void removeListener(InvalidationListener listener);
+
+	/**
+	 * Stops delivering and receiving evictions
+	 */
+	public void close();
+}
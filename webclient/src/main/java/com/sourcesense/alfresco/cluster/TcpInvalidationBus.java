@@ -0,0 +1,623 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * {@link InvalidationBus} over plain TCP connections to a static list of
+ * peers. Published evictions are coalesced while they wait for the next
+ * flush, then sent in a single frame to every peer; a flush happens at most
+ * flushInterval millis after the first pending eviction, or as soon as
+ * maxBatch evictions are pending.
+ * <p>
+ * Delivery is best effort: a peer that cannot be reached is retried after a
+ * while and the evictions meant for it are dropped, leaving the cache TTLs
+ * as the safety net. Each peer is written to by its own thread from a bounded
+ * queue, so a slow peer only loses its own frames, and evictions published
+ * while <code>maxPending</code> are already waiting are dropped as well; both
+ * show up in {@link #getDroppedCount()}. Frames carry the ID of the sending node, so the same
+ * peer list, including the node itself, can be configured everywhere.
+ * <p>
+ * Evictions can log users out, so the bus listens on loopback unless a bind
+ * address is given, only accepts connections from the configured peers, and
+ * drops frames not signed with the shared secret (HMAC-SHA256) or too old to
+ * be anything but a replay.
+ * 
+ * @author g.fernandes@sourcesense.com
+ * 
+ */
+public class TcpInvalidationBus implements InvalidationBus {
+
+	private static Log logger = LogFactory.getLog(TcpInvalidationBus.class);
+
+	private static final int MAGIC = 0x4f53534f;
+	private static final int MAX_FRAME_ENTRIES = 100000;
+	private static final int MAX_FRAME_BYTES = 4 * 1024 * 1024;
+	private static final long MAX_FRAME_AGE = 60000;
+	private static final String ALGORITHM = "HmacSHA256";
+	private static final int CONNECT_TIMEOUT = 1000;
+	private static final long RETRY_INTERVAL = 5000;
+	private static final int PEER_QUEUE_FRAMES = 64;
+
+	private final long nodeId = new Random().nextLong();
+	private final InetAddress bindAddress;
+	private final int port;
+	private final SecretKeySpec secret;
+	private final long flushInterval;
+	private final int maxBatch;
+	private final int maxPending;
+
+	private final List<Peer> peers = new CopyOnWriteArrayList<Peer>();
+	private final Set<InetAddress> peerAddresses = new CopyOnWriteArraySet<InetAddress>();
+	private final List<InvalidationListener> listeners = new CopyOnWriteArrayList<InvalidationListener>();
+	private final Set<Invalidation> pending = new LinkedHashSet<Invalidation>();
+	private final Set<Socket> connections = Collections.synchronizedSet(new HashSet<Socket>());
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	private volatile boolean running;
+	private ServerSocket serverSocket;
+	private Thread sender;
+	private Thread acceptor;
+
+	/**
+	 * @param bindAddress
+	 *            address to listen on, null for loopback
+	 * @param port
+	 *            port to listen on, 0 for an ephemeral one
+	 * @param secret
+	 *            key signing the frames, shared by all the nodes
+	 * @param flushInterval
+	 *            millis an eviction may wait to be coalesced with others
+	 * @param maxBatch
+	 *            maximum number of evictions per frame
+	 * @param maxPending
+	 *            maximum number of evictions waiting to be sent
+	 */
+	public TcpInvalidationBus(InetAddress bindAddress, int port, byte[] secret, long flushInterval, int maxBatch, int maxPending) {
+		if (maxBatch <= 0 || maxPending < maxBatch) {
+			throw new IllegalArgumentException("maxBatch must be positive and maxPending at least maxBatch");
+		}
+		if (secret == null || secret.length < 16) {
+			throw new IllegalArgumentException("Cluster secret must be at least 16 bytes long");
+		}
+		this.bindAddress = bindAddress;
+		this.port = port;
+		this.secret = new SecretKeySpec(secret, ALGORITHM);
+		newMac();
+		this.flushInterval = flushInterval;
+		this.maxBatch = maxBatch;
+		this.maxPending = maxPending;
+	}
+
+	/**
+	 * @param peers
+	 *            <code>host:port</code> pairs, or hosts alone, separated by
+	 *            commas or spaces
+	 * @param defaultPort
+	 *            port of the peers listed without one
+	 */
+	public static List<InetSocketAddress> parsePeers(String peers, int defaultPort) {
+		List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		if (peers == null || peers.trim().length() == 0) {
+			return addresses;
+		}
+		for (String peer : peers.trim().split("[\\s,]+")) {
+			int colon = peer.lastIndexOf(':');
+			if (colon < 0) {
+				addresses.add(new InetSocketAddress(peer, defaultPort));
+			} else if (colon == 0) {
+				throw new IllegalArgumentException("Peer without host: " + peer);
+			} else {
+				addresses.add(new InetSocketAddress(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+			}
+		}
+		return addresses;
+	}
+
+	/**
+	 * Sends evictions to the peer, and accepts connections from its host
+	 */
+	public void addPeer(InetSocketAddress address) {
+		if (address.getAddress() == null) {
+			logger.warn("Ignoring unresolved invalidation peer " + address);
+			return;
+		}
+		Peer peer = new Peer(address);
+		peers.add(peer);
+		peerAddresses.add(address.getAddress());
+		synchronized (this) {
+			if (running) {
+				peer.start();
+			}
+		}
+	}
+
+	public synchronized void start() throws IOException {
+		if (running) {
+			return;
+		}
+		serverSocket = new ServerSocket(port, 50, bindAddress != null ? bindAddress : InetAddress.getByName(null));
+		running = true;
+		acceptor = new Thread(new Runnable() {
+			public void run() {
+				accept();
+			}
+		}, "OpenSSO invalidation acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		sender = new Thread(new Runnable() {
+			public void run() {
+				send();
+			}
+		}, "OpenSSO invalidation sender");
+		sender.setDaemon(true);
+		sender.start();
+		for (Peer peer : peers) {
+			peer.start();
+		}
+		logger.info("Listening for cache invalidations on " + serverSocket.getLocalSocketAddress() + ", " + peers.size() + " peers");
+	}
+
+	/**
+	 * @return the port listened on, useful when started on an ephemeral one
+	 */
+	public int getLocalPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	public void publish(Region region, String key) {
+		if (key == null || !running) {
+			return;
+		}
+		synchronized (pending) {
+			Invalidation invalidation = new Invalidation(region, key);
+			if (pending.size() >= maxPending && !pending.contains(invalidation)) {
+				dropped.incrementAndGet();
+				return;
+			}
+			boolean added = pending.add(invalidation);
+			if ((added && pending.size() == 1) || pending.size() >= maxBatch) {
+				pending.notifyAll();
+			}
+		}
+	}
+
+	public void addListener(InvalidationListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(InvalidationListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * @return evictions sent, counted once per frame whatever the number of
+	 *         peers
+	 */
+	public long getSentCount() {
+		return sent.get();
+	}
+
+	public long getReceivedCount() {
+		return received.get();
+	}
+
+	/**
+	 * @return evictions that never left this node, counted once per peer
+	 *         they were meant for when a peer queue overflows or a peer is
+	 *         unreachable
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	public void close() {
+		synchronized (this) {
+			if (!running) {
+				return;
+			}
+			running = false;
+		}
+		synchronized (pending) {
+			pending.notifyAll();
+		}
+		closeQuietly(serverSocket);
+		synchronized (connections) {
+			for (Socket connection : connections) {
+				closeQuietly(connection);
+			}
+		}
+		for (Peer peer : peers) {
+			peer.stop();
+		}
+		try {
+			sender.join(CONNECT_TIMEOUT);
+			acceptor.join(CONNECT_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void send() {
+		while (running) {
+			List<Invalidation> batch;
+			try {
+				batch = nextBatch();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (batch.isEmpty()) {
+				continue;
+			}
+			Frame frame;
+			try {
+				frame = new Frame(encode(batch), batch.size());
+			} catch (IOException e) {
+				logger.warn("Unable to encode invalidations", e);
+				continue;
+			}
+			for (Peer peer : peers) {
+				peer.offer(frame);
+			}
+			sent.addAndGet(batch.size());
+		}
+	}
+
+	/**
+	 * Waits for a first eviction, then for the flush interval to coalesce
+	 * more, unless a full batch is pending earlier
+	 */
+	private List<Invalidation> nextBatch() throws InterruptedException {
+		synchronized (pending) {
+			while (running && pending.isEmpty()) {
+				pending.wait();
+			}
+			long deadline = System.currentTimeMillis() + flushInterval;
+			long wait;
+			while (running && pending.size() < maxBatch && (wait = deadline - System.currentTimeMillis()) > 0) {
+				pending.wait(wait);
+			}
+			List<Invalidation> batch = new ArrayList<Invalidation>(Math.min(pending.size(), maxBatch));
+			Iterator<Invalidation> iterator = pending.iterator();
+			while (batch.size() < maxBatch && iterator.hasNext()) {
+				batch.add(iterator.next());
+				iterator.remove();
+			}
+			return batch;
+		}
+	}
+
+	private void accept() {
+		while (running) {
+			final Socket connection;
+			try {
+				connection = serverSocket.accept();
+			} catch (IOException e) {
+				if (running) {
+					logger.warn("Unable to accept invalidation connection", e);
+				}
+				continue;
+			}
+			if (!peerAddresses.contains(connection.getInetAddress())) {
+				logger.warn("Rejected invalidation connection from " + connection.getRemoteSocketAddress() + ", not a configured peer");
+				closeQuietly(connection);
+				continue;
+			}
+			connections.add(connection);
+			Thread receiver = new Thread(new Runnable() {
+				public void run() {
+					receive(connection);
+				}
+			}, "OpenSSO invalidation receiver " + connection.getRemoteSocketAddress());
+			receiver.setDaemon(true);
+			receiver.start();
+		}
+	}
+
+	/**
+	 * Frame layout: magic, payload length, payload, HMAC of the payload. The
+	 * payload holds the sender node ID, the time it was sent and the
+	 * evictions.
+	 */
+	private byte[] encode(List<Invalidation> batch) throws IOException {
+		ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+		DataOutputStream payload = new DataOutputStream(payloadBytes);
+		payload.writeLong(nodeId);
+		payload.writeLong(System.currentTimeMillis());
+		payload.writeInt(batch.size());
+		for (Invalidation invalidation : batch) {
+			payload.writeByte(invalidation.region.ordinal());
+			payload.writeUTF(invalidation.key);
+		}
+		payload.flush();
+		byte[] signed = payloadBytes.toByteArray();
+		ByteArrayOutputStream frameBytes = new ByteArrayOutputStream(signed.length + 40);
+		DataOutputStream frame = new DataOutputStream(frameBytes);
+		frame.writeInt(MAGIC);
+		frame.writeInt(signed.length);
+		frame.write(signed);
+		frame.write(newMac().doFinal(signed));
+		frame.flush();
+		return frameBytes.toByteArray();
+	}
+
+	private void receive(Socket connection) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+			Mac mac = newMac();
+			byte[] signature = new byte[mac.getMacLength()];
+			while (running) {
+				int length;
+				if (in.readInt() != MAGIC || (length = in.readInt()) <= 0 || length > MAX_FRAME_BYTES) {
+					logger.warn("Unexpected data from " + connection.getRemoteSocketAddress() + ", closing");
+					return;
+				}
+				byte[] signed = new byte[length];
+				in.readFully(signed);
+				in.readFully(signature);
+				if (!MessageDigest.isEqual(signature, mac.doFinal(signed))) {
+					logger.warn("Invalid signature from " + connection.getRemoteSocketAddress() + ", closing");
+					return;
+				}
+				if (!apply(signed)) {
+					logger.warn("Invalid or stale frame from " + connection.getRemoteSocketAddress() + ", closing");
+					return;
+				}
+			}
+		} catch (EOFException e) {
+			logger.debug("Peer " + connection.getRemoteSocketAddress() + " disconnected");
+		} catch (IOException e) {
+			if (running) {
+				logger.info("Invalidation connection from " + connection.getRemoteSocketAddress() + " lost: " + e.getMessage());
+			}
+		} finally {
+			connections.remove(connection);
+			closeQuietly(connection);
+		}
+	}
+
+	/**
+	 * @return false if the frame is malformed or too old
+	 */
+	private boolean apply(byte[] signed) throws IOException {
+		DataInputStream payload = new DataInputStream(new ByteArrayInputStream(signed));
+		long sender = payload.readLong();
+		long sentAt = payload.readLong();
+		int count = payload.readInt();
+		if (count < 0 || count > MAX_FRAME_ENTRIES || Math.abs(System.currentTimeMillis() - sentAt) > MAX_FRAME_AGE) {
+			return false;
+		}
+		Region[] regions = Region.values();
+		for (int i = 0; i < count; i++) {
+			int region = payload.readUnsignedByte();
+			String key = payload.readUTF();
+			if (sender != nodeId && region < regions.length) {
+				dispatch(regions[region], key);
+			}
+		}
+		return true;
+	}
+
+	private Mac newMac() {
+		try {
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(secret);
+			return mac;
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(ALGORITHM + " not available", e);
+		}
+	}
+
+	private void dispatch(Region region, String key) {
+		received.incrementAndGet();
+		for (InvalidationListener listener : listeners) {
+			try {
+				listener.invalidated(region, key);
+			} catch (RuntimeException e) {
+				logger.warn("Failed to apply " + region + " invalidation of " + key, e);
+			}
+		}
+	}
+
+	private static void closeQuietly(ServerSocket socket) {
+		try {
+			if (socket != null) {
+				socket.close();
+			}
+		} catch (IOException e) {
+			// nothing left to do
+		}
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			if (socket != null) {
+				socket.close();
+			}
+		} catch (IOException e) {
+			// nothing left to do
+		}
+	}
+
+	/**
+	 * Outgoing connection with its own queue and writer thread, so a peer
+	 * blocking on writes does not hold up the others
+	 */
+	private class Peer implements Runnable {
+		private final InetSocketAddress address;
+		private final BlockingQueue<Frame> frames = new ArrayBlockingQueue<Frame>(PEER_QUEUE_FRAMES);
+		private volatile Socket socket;
+		private DataOutputStream out;
+		private long retryAt;
+		private Thread writer;
+
+		Peer(InetSocketAddress address) {
+			this.address = address;
+		}
+
+		synchronized void start() {
+			if (writer != null) {
+				return;
+			}
+			writer = new Thread(this, "OpenSSO invalidation writer " + address);
+			writer.setDaemon(true);
+			writer.start();
+		}
+
+		synchronized void stop() {
+			if (writer != null) {
+				writer.interrupt();
+			}
+			closeQuietly(socket);
+		}
+
+		void offer(Frame frame) {
+			if (!frames.offer(frame)) {
+				dropped.addAndGet(frame.count);
+				logger.debug("Invalidation queue for " + address + " full, dropped " + frame.count + " evictions");
+			}
+		}
+
+		public void run() {
+			try {
+				while (running) {
+					send(frames.take());
+				}
+			} catch (InterruptedException e) {
+				// closing
+			} finally {
+				disconnect();
+			}
+		}
+
+		/**
+		 * Frames that waited longer than the receivers accept are dropped
+		 * rather than sent
+		 */
+		private void send(Frame frame) {
+			if (System.currentTimeMillis() - frame.createdAt > MAX_FRAME_AGE || (out == null && !connect())) {
+				dropped.addAndGet(frame.count);
+				return;
+			}
+			try {
+				out.write(frame.bytes);
+				out.flush();
+			} catch (IOException e) {
+				dropped.addAndGet(frame.count);
+				if (running) {
+					logger.info("Lost invalidation peer " + address + ": " + e.getMessage());
+				}
+				disconnect();
+				retryAt = System.currentTimeMillis() + RETRY_INTERVAL;
+			}
+		}
+
+		private boolean connect() {
+			if (System.currentTimeMillis() < retryAt) {
+				return false;
+			}
+			try {
+				socket = new Socket();
+				socket.setTcpNoDelay(true);
+				socket.connect(address, CONNECT_TIMEOUT);
+				out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				return true;
+			} catch (IOException e) {
+				logger.debug("Invalidation peer " + address + " unreachable: " + e.getMessage());
+			}
+			disconnect();
+			retryAt = System.currentTimeMillis() + RETRY_INTERVAL;
+			return false;
+		}
+
+		void disconnect() {
+			closeQuietly(socket);
+			socket = null;
+			out = null;
+		}
+	}
+
+	private static final class Frame {
+		final byte[] bytes;
+		final int count;
+		final long createdAt = System.currentTimeMillis();
+
+		Frame(byte[] bytes, int count) {
+			this.bytes = bytes;
+			this.count = count;
+		}
+	}
+
+	private static final class Invalidation {
+		final Region region;
+		final String key;
+
+		Invalidation(Region region, String key) {
+			this.region = region;
+			this.key = key;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Invalidation)) {
+				return false;
+			}
+			Invalidation other = (Invalidation) obj;
+			return region == other.region && key.equals(other.key);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * region.hashCode() + key.hashCode();
+		}
+	}
+}
@@ -0,0 +1,303 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.monitor;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Counters and per-stage latencies of the SSO authentication pipeline,
+ * shared by the filters and the web script authenticator, and published on
+ * the platform MBean server under the {@value #DOMAIN} domain along with the
+ * statistics of the caches in front of OpenSSO and Alfresco
+ * 
+ * @author g.fernandes@sourcesense.com
+ * 
+ */
+public class AuthenticationMetrics implements AuthenticationMetricsMBean {
+
+	private static Log logger = LogFactory.getLog(AuthenticationMetrics.class);
+
+	public static final String DOMAIN = "com.sourcesense.alfresco.opensso";
+
+	/**
+	 * Timed stages of the pipeline
+	 */
+	public enum Stage {
+		/** whole filter processing, excluding the rest of the chain */
+		FILTER("filter"),
+		/** whole web script authentication */
+		WEBSCRIPT_AUTHENTICATION("webScriptAuthentication"),
+		/** SSOToken creation from the request cookie */
+		TOKEN_PARSING("tokenParsing"),
+		/** remote session validation, on token cache misses */
+		TOKEN_VALIDATION("tokenValidation"),
+		/** identity attributes and groups fetch, on identity cache misses */
+		ATTRIBUTE_FETCH("attributeFetch"),
+		/** security context restored from the HTTP session */
+		SESSION_RESTORE("sessionRestore"),
+		/** guest authentication */
+		GUEST_AUTHENTICATION("guestAuthentication"),
+		/** first login or re-synchronization, including the two below */
+		PROVISIONING("provisioning"),
+		USER_CREATION("userCreation"),
+		GROUP_SYNC("groupSync");
+
+		private final String name;
+
+		private Stage(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	/**
+	 * Counted events
+	 */
+	public enum Counter {
+		BYPASSED_REQUESTS, GUEST_REQUESTS, RESTORED_SESSIONS, PROVISIONED_USERS, LOGIN_REQUESTS, LOGOUT_REQUESTS, LOGIN_REDIRECTS, SIGNED_COOKIE_SESSIONS, TOKEN_INVALIDATIONS, REVOKED_SESSIONS, TRANSACTION_COMMITS, TRANSACTION_ROLLBACKS, JOINED_TRANSACTIONS
+	}
+
+	private static final AuthenticationMetrics INSTANCE = new AuthenticationMetrics();
+
+	private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+	private final StripedCounter[] counters = new StripedCounter[Counter.values().length];
+	private final Map<String, Object> caches = new LinkedHashMap<String, Object>();
+	private volatile Collection<?> groupSyncQueue;
+	private int registrations;
+	private String application;
+
+	private AuthenticationMetrics() {
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new LatencyHistogram();
+		}
+		for (int i = 0; i < counters.length; i++) {
+			counters[i] = new StripedCounter();
+		}
+	}
+
+	public static AuthenticationMetrics getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Records the time elapsed in a stage
+	 * 
+	 * @param stage
+	 * @param startNanos
+	 *            {@link System#nanoTime()} when the stage began
+	 */
+	public static void record(Stage stage, long startNanos) {
+		INSTANCE.histograms[stage.ordinal()].recordSince(startNanos);
+	}
+
+	public static void count(Counter counter) {
+		INSTANCE.counters[counter.ordinal()].increment();
+	}
+
+	public static void count(Counter counter, long events) {
+		INSTANCE.counters[counter.ordinal()].add(events);
+	}
+
+	public LatencyHistogram getHistogram(Stage stage) {
+		return histograms[stage.ordinal()];
+	}
+
+	public long getCount(Counter counter) {
+		return counters[counter.ordinal()].sum();
+	}
+
+	/**
+	 * @param queue
+	 *            principals waiting for asynchronous group synchronization,
+	 *            null when it is disabled
+	 */
+	public void setGroupSyncQueue(Collection<?> queue) {
+		groupSyncQueue = queue;
+	}
+
+	/**
+	 * Publishes the statistics of a cache with the other MBeans, replacing
+	 * any cache registered under the same name
+	 * 
+	 * @param name
+	 * @param cache
+	 *            a standard MBean
+	 */
+	public synchronized void registerCache(String name, Object cache) {
+		Object previous = caches.put(name, cache);
+		if (registrations == 0) {
+			return;
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			if (previous != null) {
+				server.unregisterMBean(cacheName(name));
+			}
+			server.registerMBean(cache, cacheName(name));
+		} catch (JMException e) {
+			logger.warn("Unable to register " + name + " cache MBean", e);
+		}
+	}
+
+	/**
+	 * Publishes the MBeans, unless already done by another component of the
+	 * same webapp
+	 * 
+	 * @param application
+	 *            name of the webapp, distinguishing MBeans of webapps sharing
+	 *            the same JVM
+	 */
+	public synchronized void register(String application) {
+		if (registrations++ > 0) {
+			return;
+		}
+		this.application = ObjectName.quote(application == null ? "default" : application);
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.registerMBean(this, metricsName());
+			for (Stage stage : Stage.values()) {
+				server.registerMBean(getHistogram(stage), stageName(stage));
+			}
+		} catch (JMException e) {
+			logger.warn("Unable to register authentication MBeans", e);
+		}
+		for (Map.Entry<String, Object> cache : caches.entrySet()) {
+			try {
+				server.registerMBean(cache.getValue(), cacheName(cache.getKey()));
+			} catch (JMException e) {
+				logger.warn("Unable to register " + cache.getKey() + " cache MBean", e);
+			}
+		}
+	}
+
+	/**
+	 * Removes the MBeans once the last component that registered them is
+	 * destroyed, so that the webapp class loader is not retained
+	 */
+	public synchronized void unregister() {
+		if (registrations == 0 || --registrations > 0) {
+			return;
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.unregisterMBean(metricsName());
+			for (Stage stage : Stage.values()) {
+				server.unregisterMBean(stageName(stage));
+			}
+		} catch (JMException e) {
+			logger.warn("Unable to unregister authentication MBeans", e);
+		}
+		for (String cache : caches.keySet()) {
+			try {
+				server.unregisterMBean(cacheName(cache));
+			} catch (JMException e) {
+				logger.debug("Cache MBean " + cache + " was not registered");
+			}
+		}
+	}
+
+	private ObjectName metricsName() throws JMException {
+		return new ObjectName(DOMAIN + ":type=AuthenticationMetrics,application=" + application);
+	}
+
+	private ObjectName stageName(Stage stage) throws JMException {
+		return new ObjectName(DOMAIN + ":type=Stage,application=" + application + ",name=" + stage.getName());
+	}
+
+	private ObjectName cacheName(String cache) throws JMException {
+		return new ObjectName(DOMAIN + ":type=Cache,application=" + application + ",name=" + cache);
+	}
+
+	public long getBypassedRequests() {
+		return getCount(Counter.BYPASSED_REQUESTS);
+	}
+
+	public long getGuestRequests() {
+		return getCount(Counter.GUEST_REQUESTS);
+	}
+
+	public long getRestoredSessions() {
+		return getCount(Counter.RESTORED_SESSIONS);
+	}
+
+	public long getProvisionedUsers() {
+		return getCount(Counter.PROVISIONED_USERS);
+	}
+
+	public long getLoginRequests() {
+		return getCount(Counter.LOGIN_REQUESTS);
+	}
+
+	public long getLogoutRequests() {
+		return getCount(Counter.LOGOUT_REQUESTS);
+	}
+
+	public long getLoginRedirects() {
+		return getCount(Counter.LOGIN_REDIRECTS);
+	}
+
+	public long getSignedCookieSessions() {
+		return getCount(Counter.SIGNED_COOKIE_SESSIONS);
+	}
+
+	public long getTokenInvalidations() {
+		return getCount(Counter.TOKEN_INVALIDATIONS);
+	}
+
+	public long getRevokedSessions() {
+		return getCount(Counter.REVOKED_SESSIONS);
+	}
+
+	public long getTransactionCommits() {
+		return getCount(Counter.TRANSACTION_COMMITS);
+	}
+
+	public long getTransactionRollbacks() {
+		return getCount(Counter.TRANSACTION_ROLLBACKS);
+	}
+
+	public long getJoinedTransactions() {
+		return getCount(Counter.JOINED_TRANSACTIONS);
+	}
+
+	public int getGroupSyncQueueDepth() {
+		Collection<?> queue = groupSyncQueue;
+		return queue == null ? 0 : queue.size();
+	}
+
+	public void reset() {
+		for (StripedCounter counter : counters) {
+			counter.reset();
+		}
+		for (LatencyHistogram histogram : histograms) {
+			histogram.reset();
+		}
+	}
+}
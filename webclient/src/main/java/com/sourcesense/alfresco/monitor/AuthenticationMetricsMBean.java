@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.monitor;
+
+/**
+ * Counters of the authentication pipeline; latencies of its stages are
+ * published as separate {@link LatencyHistogramMBean}s
+ * 
+ * @author g.fernandes@sourcesense.com
+ * 
+ */
+public interface AuthenticationMetricsMBean {
+
+	long getBypassedRequests();
+
+	long getGuestRequests();
+
+	long getRestoredSessions();
+
+	long getProvisionedUsers();
+
+	long getLoginRequests();
+
+	long getLogoutRequests();
+
+	long getLoginRedirects();
+
+	/**
+	 * @return requests authenticated by the signed cookie alone
+	 */
+	long getSignedCookieSessions();
+
+	/**
+	 * @return cached tokens evicted by OpenSSO session events
+	 */
+	long getTokenInvalidations();
+
+	/**
+	 * @return HTTP sessions invalidated by a token or user revocation
+	 */
+	long getRevokedSessions();
+
+	long getTransactionCommits();
+
+	long getTransactionRollbacks();
+
+	long getJoinedTransactions();
+
+	/**
+	 * @return principals waiting for asynchronous group synchronization
+	 */
+	int getGroupSyncQueueDepth();
+
+	/**
+	 * Resets counters and latencies of all the stages
+	 */
+	void reset();
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.monitor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies with power of two buckets, striped per thread like
+ * {@link StripedCounter}. Recording costs a few atomic increments; percentiles
+ * are reported as the upper bound of their bucket, so they are accurate
+ * within a factor of two.
+ * 
+ * @author g.fernandes@sourcesense.com
+ * 
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+
+	private static final int BUCKETS = 64;
+	private static final double NANOS_PER_MILLI = 1000000.0;
+
+	/** bucket i of stripe s, at s * BUCKETS + i, counts values below 2^i ns */
+	private final AtomicLongArray buckets = new AtomicLongArray(StripedCounter.STRIPES * BUCKETS);
+	private final StripedCounter count = new StripedCounter();
+	private final StripedCounter total = new StripedCounter();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records the time elapsed since the given {@link System#nanoTime()}
+	 * 
+	 * @param startNanos
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		buckets.incrementAndGet(StripedCounter.stripe() * BUCKETS + bucketOf(nanos));
+		count.increment();
+		total.add(nanos);
+		long currentMax;
+		while (nanos > (currentMax = max.get()) && !max.compareAndSet(currentMax, nanos)) {
+		}
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public double getMeanMillis() {
+		long count = getCount();
+		return count == 0 ? 0 : total.sum() / (double) count / NANOS_PER_MILLI;
+	}
+
+	public double getMaxMillis() {
+		return max.get() / NANOS_PER_MILLI;
+	}
+
+	public double getPercentile50Millis() {
+		return percentileMillis(0.50);
+	}
+
+	public double getPercentile95Millis() {
+		return percentileMillis(0.95);
+	}
+
+	public double getPercentile99Millis() {
+		return percentileMillis(0.99);
+	}
+
+	public double getPercentile999Millis() {
+		return percentileMillis(0.999);
+	}
+
+	/**
+	 * @param percentile
+	 *            between 0 and 1
+	 * @return upper bound of the bucket holding the percentile, capped to the
+	 *         maximum recorded value
+	 */
+	public double percentileMillis(double percentile) {
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			long bucketCount = buckets.get(i);
+			counts[i % BUCKETS] += bucketCount;
+			total += bucketCount;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(percentile * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				long upperBound = i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i);
+				return Math.min(upperBound, max.get()) / NANOS_PER_MILLI;
+			}
+		}
+		return getMaxMillis();
+	}
+
+	public void reset() {
+		for (int i = 0; i < buckets.length(); i++) {
+			buckets.set(i, 0);
+		}
+		count.reset();
+		total.reset();
+		max.set(0);
+	}
+
+	private static int bucketOf(long nanos) {
+		return 64 - Long.numberOfLeadingZeros(nanos);
+	}
+}
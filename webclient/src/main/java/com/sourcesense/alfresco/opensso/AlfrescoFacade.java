@@ -17,10 +17,17 @@
 package com.sourcesense.alfresco.opensso;
 
 import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
@@ -29,14 +36,24 @@ import javax.servlet.http.HttpSession;
 
 import org.alfresco.i18n.I18NUtil;
 import org.alfresco.model.ContentModel;
+import org.alfresco.repo.node.NodeServicePolicies;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
 import org.alfresco.repo.security.authentication.AuthenticationComponent;
+import org.alfresco.repo.security.authentication.AuthenticationException;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
 import org.alfresco.repo.security.authentication.TicketComponent;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
 import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.DuplicateChildNodeNameException;
+import org.alfresco.service.cmr.repository.InvalidNodeRefException;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
 import org.alfresco.service.cmr.security.AuthenticationService;
 import org.alfresco.service.cmr.security.AuthorityService;
 import org.alfresco.service.cmr.security.AuthorityType;
+import org.alfresco.service.cmr.security.NoSuchPersonException;
 import org.alfresco.service.cmr.security.PermissionService;
 import org.alfresco.service.cmr.security.PersonService;
 import org.alfresco.service.namespace.QName;
@@ -51,6 +68,15 @@ import org.apache.commons.logging.LogFactory;
 import org.springframework.web.context.WebApplicationContext;
 import org.springframework.web.context.support.WebApplicationContextUtils;
 
+import com.sourcesense.alfresco.cache.BloomFilter;
+import com.sourcesense.alfresco.cache.FrequencyCache;
+import com.sourcesense.alfresco.cluster.InvalidationBus;
+import com.sourcesense.alfresco.cluster.InvalidationBus.Region;
+import com.sourcesense.alfresco.cluster.InvalidationListener;
+import com.sourcesense.alfresco.cluster.NullInvalidationBus;
+import com.sourcesense.alfresco.monitor.AuthenticationMetrics;
+import com.sourcesense.alfresco.monitor.AuthenticationMetrics.Counter;
+import com.sourcesense.alfresco.monitor.AuthenticationMetrics.Stage;
 import com.sourcesense.alfresco.transaction.Transactionable;
 import com.sourcesense.alfresco.transaction.TransactionalHelper;
 
@@ -82,6 +108,59 @@ public class AlfrescoFacade {
 
 	private List<String> m_languages;
 
+	private static final String GROUP_PREFIX = "GROUP_";
+	private static final String GROUP_EVERYONE = "EVERYONE";
+
+	private static final int GROUP_FINGERPRINTS_SIZE = 50000;
+	private static final long GROUP_FINGERPRINTS_TTL = 60 * 60 * 1000;
+
+	/**
+	 * Fingerprint of the last group set synchronized for each principal. An
+	 * evicted or expired entry only costs one extra reconciliation.
+	 */
+	private final FrequencyCache<String, String> groupFingerprints = new FrequencyCache<String, String>(GROUP_FINGERPRINTS_SIZE,
+			GROUP_FINGERPRINTS_TTL);
+
+	private volatile AsyncGroupSynchronizer groupSynchronizer;
+
+	private static final int PERSON_CACHE_SIZE = 50000;
+	private static final long PERSON_CACHE_TTL = 10 * 60 * 1000;
+
+	/**
+	 * Person and home space of each principal, evicted by node policies when
+	 * a person is deleted or updated, and by TTL as a safety net
+	 */
+	private final FrequencyCache<String, PersonRefs> personCache = new FrequencyCache<String, PersonRefs>(PERSON_CACHE_SIZE, PERSON_CACHE_TTL);
+
+	private static final int KNOWN_PRINCIPALS_EXPECTED = 250000;
+	private static final double KNOWN_PRINCIPALS_FALSE_POSITIVES = 0.001;
+	private static final int PRELOAD_BATCH_SIZE = 500;
+
+	/**
+	 * Principals known to exist in the repository, so that
+	 * {@link #existUser(String)} rarely needs a transaction. Principals are
+	 * only added once the transaction creating or reading them commits. A
+	 * false positive or a deleted person makes provisioning fail, and
+	 * {@link #provisionUser} retries it checking the repository.
+	 */
+	private final BloomFilter knownPrincipals = new BloomFilter(KNOWN_PRINCIPALS_EXPECTED, KNOWN_PRINCIPALS_FALSE_POSITIVES);
+
+	private volatile InvalidationBus invalidationBus = new NullInvalidationBus();
+	private final InvalidationListener clusterListener = new ClusterInvalidationListener();
+
+	private static final int PROVISIONING_LOCKS = 64;
+
+	/**
+	 * Striped locks serializing provisioning of the same principal, while
+	 * unrelated principals rarely share a stripe
+	 */
+	private final Object[] provisioningLocks = new Object[PROVISIONING_LOCKS];
+	{
+		for (int i = 0; i < PROVISIONING_LOCKS; i++) {
+			provisioningLocks[i] = new Object();
+		}
+	}
+
 	public AlfrescoFacade(ServletContext servletContext) {
 		this.servletContext = servletContext;
 		WebApplicationContext ctx = WebApplicationContextUtils.getRequiredWebApplicationContext(servletContext);
@@ -96,28 +175,133 @@ public class AlfrescoFacade {
 		authorityService = (AuthorityService) ctx.getBean("authorityService");
 		transactionalHelper = new TransactionalHelper(transactionService);
 		ticketComponent = (TicketComponent) ctx.getBean("ticketComponent");
+		bindPersonPolicies((PolicyComponent) ctx.getBean("policyComponent"));
+	}
 
+	private void bindPersonPolicies(PolicyComponent policyComponent) {
+		PersonPolicies policies = new PersonPolicies();
+		policyComponent.bindClassBehaviour(NodeServicePolicies.BeforeDeleteNodePolicy.QNAME, ContentModel.TYPE_PERSON, new JavaBehaviour(policies,
+				"beforeDeleteNode"));
+		policyComponent.bindClassBehaviour(NodeServicePolicies.OnUpdatePropertiesPolicy.QNAME, ContentModel.TYPE_PERSON, new JavaBehaviour(policies,
+				"onUpdateProperties"));
 	}
 
 	protected void setAuthenticatedUser(final HttpServletRequest req, final HttpServletResponse res, final HttpSession httpSess, final String userName) {
 		authenticationService.clearCurrentSecurityContext();
 		authComponent.setCurrentUser(userName);
 		ticketComponent.clearCurrentTicket();
-		transactionalHelper.doInTransaction(new Transactionable() {
-			public Object execute() {
-				User user;
-				NodeRef homeSpaceRef = null;
-				user = new User(userName, authService.getCurrentTicket(), personService.getPerson(userName));
-				homeSpaceRef = (NodeRef) nodeService.getProperty(personService.getPerson(userName), ContentModel.PROP_HOMEFOLDER);
-				user.setHomeSpaceId(homeSpaceRef.getId());
-				populateSession(httpSess, user);
-				setLocale(httpSess);
-				return null;
+		PersonRefs person = getPersonRefs(userName);
+		User user = new User(userName, authService.getCurrentTicket(), person.personRef);
+		user.setHomeSpaceId(person.homeSpaceId);
+		populateSession(httpSess, user);
+		setLocale(httpSess);
+	}
+
+	/**
+	 * @param userName
+	 * @return person and home space of the user, read from the repository
+	 *         only on a cache miss
+	 */
+	protected PersonRefs getPersonRefs(final String userName) {
+		PersonRefs person = personCache.get(userName);
+		if (person == null) {
+			person = (PersonRefs) transactionalHelper.doInReadOnlyTransaction(new Transactionable() {
+				public Object execute() {
+					NodeRef personRef = personService.getPerson(userName);
+					NodeRef homeSpaceRef = (NodeRef) nodeService.getProperty(personRef, ContentModel.PROP_HOMEFOLDER);
+					return new PersonRefs(personRef, homeSpaceRef.getId());
+				}
+			});
+			final PersonRefs loaded = person;
+			afterCommit(new Runnable() {
+				public void run() {
+					personCache.put(userName, loaded);
+				}
+			});
+		}
+		return person;
+	}
+
+	/**
+	 * Runs a cache update once the active transaction, if any, commits, so
+	 * that caches never hold data of a rolled back transaction
+	 */
+	private void afterCommit(final Runnable update) {
+		if (!transactionalHelper.isTransactionActive()) {
+			update.run();
+			return;
+		}
+		AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter() {
+			@Override
+			public void afterCommit() {
+				update.run();
+			}
+		});
+	}
+
+	private void addKnownPrincipal(final String userName) {
+		afterCommit(new Runnable() {
+			public void run() {
+				knownPrincipals.put(userName);
 			}
 		});
+	}
+
+	/**
+	 * Loads the repository data needed by guest requests, so that the first
+	 * one does not pay for it
+	 */
+	public void warmUp() {
+		try {
+			AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Object>() {
+				public Object doWork() throws Exception {
+					return getPersonRefs(PermissionService.GUEST_AUTHORITY);
+				}
+			}, AuthenticationUtil.getSystemUserName());
+		} catch (RuntimeException e) {
+			logger.warn("Could not load guest person", e);
+		}
+	}
 
+	/**
+	 * Forgets the cached person and home space of the user
+	 * 
+	 * @param userName
+	 */
+	public void invalidatePerson(String userName) {
+		if (userName != null) {
+			personCache.remove(userName);
+		}
 	}
 	
+	/**
+	 * Restores the security context of a session already holding the given
+	 * user, validating its ticket like Alfresco's AuthenticationHelper does.
+	 * No repository transaction is needed.
+	 * 
+	 * @param httpSess
+	 * @param userName
+	 * @return false if the session does not hold that user or its ticket is
+	 *         no longer valid
+	 */
+	public boolean restoreSecurityContext(HttpSession httpSess, String userName) {
+		User user = (User) httpSess.getAttribute(AuthenticationHelper.AUTHENTICATION_USER);
+		if (user == null || userName == null || !userName.equals(user.getUserName())) {
+			return false;
+		}
+		long start = System.nanoTime();
+		try {
+			authenticationService.validate(user.getTicket());
+		} catch (AuthenticationException e) {
+			logger.debug("Session ticket no longer valid for " + userName);
+			return false;
+		} finally {
+			AuthenticationMetrics.record(Stage.SESSION_RESTORE, start);
+		}
+		setLocale(httpSess);
+		return true;
+	}
+
 	protected void setLocale(HttpSession session) {
 		I18NUtil.setLocale(Application.getLanguage(session));
 	}
@@ -128,6 +312,7 @@ public class AlfrescoFacade {
 	}
 
 	public void createUser(final String username, final String email, final String firstName, final String lastName) {
+		long start = System.nanoTime();
 		transactionalHelper.doInTransaction(new Transactionable() {
 			public Object execute() {
 				authenticationService.createAuthentication(username, username.toCharArray());
@@ -146,58 +331,516 @@ public class AlfrescoFacade {
 				return (email == null || email.isEmpty()) ? username.concat("@") : email;
 			}
 		});
+		addKnownPrincipal(username);
+		AuthenticationMetrics.record(Stage.USER_CREATION, start);
 	}
 
+	/**
+	 * Provisions an authenticated OpenSSO user in a single transaction:
+	 * creates the user if missing, synchronizes its groups and populates the
+	 * session. A failure in any step rolls back the whole unit.
+	 * <p>
+	 * Concurrent requests of the same principal are coalesced: one thread
+	 * provisions while the others wait, then find the user up to date and
+	 * only populate their session.
+	 * <p>
+	 * Should provisioning fail on stale user data, because the user was
+	 * wrongly assumed to exist or to be missing, it is retried once without
+	 * cached person data and checking the repository. Other failures are
+	 * propagated.
+	 * 
+	 * @param req
+	 * @param res
+	 * @param httpSess
+	 * @param identity
+	 * @throws IllegalArgumentException
+	 *             if the identity has no principal
+	 */
+	public void provisionUser(final HttpServletRequest req, final HttpServletResponse res, final HttpSession httpSess, final OpenSSOIdentity identity) {
+		if (identity == null || identity.getPrincipal() == null) {
+			throw new IllegalArgumentException("Cannot provision an identity without principal");
+		}
+		long start = System.nanoTime();
+		try {
+			boolean[] creating = new boolean[1];
+			try {
+				provisionUser(req, res, httpSess, identity, false, creating);
+			} catch (RuntimeException e) {
+				if (!isStaleUserData(identity.getPrincipal(), e, creating[0])) {
+					throw e;
+				}
+				logger.info("Provisioning of " + identity.getPrincipal() + " failed on stale user data, checking the repository again", e);
+				provisionUser(req, res, httpSess, identity, true, creating);
+			}
+		} finally {
+			AuthenticationMetrics.record(Stage.PROVISIONING, start);
+		}
+		AuthenticationMetrics.count(Counter.PROVISIONED_USERS);
+	}
+
+	private void provisionUser(final HttpServletRequest req, final HttpServletResponse res, final HttpSession httpSess, final OpenSSOIdentity identity,
+			final boolean verifyExistence, final boolean[] creating) {
+		final String principal = identity.getPrincipal();
+		boolean provisioned;
+		synchronized (provisioningLockFor(principal)) {
+			provisioned = isGroupsSynchronized(principal, identity.getGroups()) && existUser(principal, verifyExistence);
+			if (!provisioned) {
+				try {
+					transactionalHelper.doInTransaction(new Transactionable() {
+						public Object execute() {
+							if (!existUser(principal, verifyExistence)) {
+								String email = identity.getAttribute(OpenSSOClient.ATTR_EMAIL);
+								String fullName = identity.getAttribute(OpenSSOClient.ATTR_FULL_NAME);
+								String firstName = identity.getAttribute(OpenSSOClient.ATTR_LAST_NAME);
+								creating[0] = true;
+								createUser(principal, email, firstName, fullName);
+								creating[0] = false;
+							}
+							createOrUpdateGroups(principal, identity.getGroups());
+							setAuthenticatedUser(req, res, httpSess, principal);
+							return null;
+						}
+					});
+				} catch (RuntimeException e) {
+					invalidateGroups(principal);
+					invalidatePerson(principal);
+					throw e;
+				}
+			}
+		}
+		if (provisioned) {
+			setAuthenticatedUser(req, res, httpSess, principal);
+		}
+	}
+
+	/**
+	 * @param principal
+	 * @param failure
+	 * @param creating
+	 *            whether the failure happened while creating the user
+	 * @return true if the failure comes from a person or node that no longer
+	 *         exists, or from creating a user that exists by now
+	 */
+	private boolean isStaleUserData(String principal, RuntimeException failure, boolean creating) {
+		for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+			if (cause instanceof NoSuchPersonException || cause instanceof InvalidNodeRefException || cause instanceof DuplicateChildNodeNameException) {
+				return true;
+			}
+		}
+		return creating && existUserInRepository(principal).booleanValue();
+	}
+
+	private Object provisioningLockFor(String principal) {
+		int hash = principal.hashCode();
+		hash ^= (hash >>> 16);
+		return provisioningLocks[hash & (PROVISIONING_LOCKS - 1)];
+	}
+
+	/**
+	 * @param username
+	 * @return true if the user exists; users already known are not looked up
+	 *         in the repository
+	 */
 	public Boolean existUser(final String username) {
-		return (Boolean) transactionalHelper.doInTransaction(new Transactionable() {
+		if (knownPrincipals.mightContain(username)) {
+			return Boolean.TRUE;
+		}
+		return existUserInRepository(username);
+	}
+
+	private Boolean existUser(String username, boolean verifyExistence) {
+		return verifyExistence ? existUserInRepository(username) : existUser(username);
+	}
+
+	private Boolean existUserInRepository(final String username) {
+		Boolean exists = (Boolean) transactionalHelper.doInReadOnlyTransaction(new Transactionable() {
 			public Object execute() {
 				return personService.personExists(username);
 			}
 		});
+		if (exists) {
+			addKnownPrincipal(username);
+		}
+		return exists;
+	}
+
+	/**
+	 * Loads the user names of all the people in the repository into the
+	 * known principals, in a background thread so that startup is not
+	 * delayed. Until it completes, unknown users are simply looked up.
+	 */
+	public void preloadKnownPrincipals() {
+		Thread loader = new Thread(new Runnable() {
+			public void run() {
+				long start = System.currentTimeMillis();
+				try {
+					AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Object>() {
+						public Object doWork() throws Exception {
+							loadKnownPrincipals();
+							return null;
+						}
+					}, AuthenticationUtil.getSystemUserName());
+					logger.info("Loaded " + knownPrincipals.getInsertionCount() + " known principals in " + (System.currentTimeMillis() - start) + "ms");
+				} catch (RuntimeException e) {
+					logger.warn("Could not preload known principals", e);
+				}
+			}
+		}, "OpenSSO known principals loader");
+		loader.setDaemon(true);
+		loader.start();
+	}
+
+	/**
+	 * Alfresco offers no paged people query, so all the person node
+	 * references are listed at once. Only their user names are read
+	 * {@value #PRELOAD_BATCH_SIZE} people at a time, each batch in its own
+	 * short read-only transaction.
+	 */
+	@SuppressWarnings("unchecked")
+	protected void loadKnownPrincipals() {
+		final List<NodeRef> people = (List<NodeRef>) transactionalHelper.doInReadOnlyTransaction(new Transactionable() {
+			public Object execute() {
+				Set<NodeRef> people = personService.getAllPeople();
+				return people == null ? new ArrayList<NodeRef>() : new ArrayList<NodeRef>(people);
+			}
+		});
+		for (int from = 0; from < people.size(); from += PRELOAD_BATCH_SIZE) {
+			final List<NodeRef> batch = people.subList(from, Math.min(from + PRELOAD_BATCH_SIZE, people.size()));
+			transactionalHelper.doInReadOnlyTransaction(new Transactionable() {
+				public Object execute() {
+					for (NodeRef person : batch) {
+						if (!nodeService.exists(person)) {
+							continue;
+						}
+						String userName = (String) nodeService.getProperty(person, ContentModel.PROP_USERNAME);
+						if (userName != null) {
+							knownPrincipals.put(userName);
+						}
+					}
+					return null;
+				}
+			});
+		}
 	}
 
 	public ArrayList<String> getUserGroups(String username) {
 		throw new NotImplementedException("Not implemented");
 	}
 
+	/**
+	 * Reconciles the user's Alfresco groups with the OpenSSO ones. Nothing is
+	 * read or written when the membership is unchanged since the last
+	 * synchronization; otherwise only the actual differences are applied.
+	 * <p>
+	 * With asynchronous synchronization enabled the update is queued, after
+	 * the current transaction commits if there is one. Should the queue be
+	 * full, the update is applied inline, or dropped when already committed,
+	 * in which case the next request retries it.
+	 * 
+	 * @param principal
+	 * @param groups
+	 */
 	public void createOrUpdateGroups(final String principal, final List<String> groups) {
-		if (groups == null || groups.size() == 0) {
+		if (isGroupsSynchronized(principal, groups)) {
 			return;
 		}
+		final AsyncGroupSynchronizer synchronizer = groupSynchronizer;
+		if (synchronizer != null) {
+			if (transactionalHelper.isTransactionActive()) {
+				AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter() {
+					@Override
+					public void afterCommit() {
+						synchronizer.submit(principal, groups);
+					}
+				});
+				return;
+			}
+			if (synchronizer.submit(principal, groups)) {
+				return;
+			}
+		}
 		transactionalHelper.doInTransaction(new Transactionable() {
 			public Object execute() {
-				Set<String> authoritiesForUser = authorityService.getAuthoritiesForUser(principal);
-				for (String authority : authoritiesForUser) {
-					if (authority.startsWith("GROUP_")) {
-						String groupName = authority.substring("GROUP_".length());
-						if (!groups.contains(groupName) && !groupName.equals("EVERYONE")) {
-							authorityService.removeAuthority(authority, principal);
-						}
-					}
-				}
-				for (String group : groups) {
-					String authority = "GROUP_".concat(group);
-					if (!authorityService.authorityExists(authority)) {
-						authority = authorityService.createAuthority(AuthorityType.GROUP, null, group);
+				applyGroups(principal, groups);
+				afterCommit(new Runnable() {
+					public void run() {
+						groupFingerprints.put(principal, groupsFingerprint(groups));
 					}
-					authorityService.addAuthority(authority, principal);
-				}
+				});
 				return null;
 			}
 		});
 	}
 
+	/**
+	 * Applies the membership of many principals in a single transaction, as
+	 * the system user since it runs outside of any request
+	 * 
+	 * @param groupsByPrincipal
+	 */
+	protected void synchronizeGroups(final Map<String, List<String>> groupsByPrincipal) {
+		if (groupsByPrincipal.isEmpty()) {
+			return;
+		}
+		AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Object>() {
+			public Object doWork() throws Exception {
+				return transactionalHelper.doInTransaction(new Transactionable() {
+					public Object execute() {
+						for (Map.Entry<String, List<String>> entry : groupsByPrincipal.entrySet()) {
+							applyGroups(entry.getKey(), entry.getValue());
+						}
+						return null;
+					}
+				});
+			}
+		}, AuthenticationUtil.getSystemUserName());
+		for (Map.Entry<String, List<String>> entry : groupsByPrincipal.entrySet()) {
+			groupFingerprints.put(entry.getKey(), groupsFingerprint(entry.getValue()));
+		}
+	}
+
+	private void applyGroups(String principal, List<String> groups) {
+		long start = System.nanoTime();
+		boolean changed = false;
+		Set<String> currentGroups = new HashSet<String>();
+		for (String authority : authorityService.getAuthoritiesForUser(principal)) {
+			if (authority.startsWith(GROUP_PREFIX)) {
+				currentGroups.add(authority.substring(GROUP_PREFIX.length()));
+			}
+		}
+		for (String groupName : currentGroups) {
+			if (!groups.contains(groupName) && !groupName.equals(GROUP_EVERYONE)) {
+				authorityService.removeAuthority(GROUP_PREFIX.concat(groupName), principal);
+				changed = true;
+			}
+		}
+		for (String group : groups) {
+			if (currentGroups.contains(group)) {
+				continue;
+			}
+			String authority = GROUP_PREFIX.concat(group);
+			if (!authorityService.authorityExists(authority)) {
+				authority = authorityService.createAuthority(AuthorityType.GROUP, null, group);
+			}
+			authorityService.addAuthority(authority, principal);
+			changed = true;
+		}
+		if (changed) {
+			invalidationBus.publish(Region.IDENTITY, principal);
+		}
+		AuthenticationMetrics.record(Stage.GROUP_SYNC, start);
+	}
+
+	/**
+	 * Switches group synchronization to a background write-behind queue
+	 * 
+	 * @param capacity
+	 *            maximum number of principals waiting in the queue
+	 * @param batchSize
+	 *            maximum number of principals applied per transaction
+	 */
+	public synchronized void enableAsynchronousGroupSync(int capacity, int batchSize) {
+		if (groupSynchronizer == null) {
+			groupSynchronizer = new AsyncGroupSynchronizer(this, capacity, batchSize);
+		}
+	}
+
+	/**
+	 * @return number of principals waiting for asynchronous group
+	 *         synchronization
+	 */
+	public int getGroupSyncQueueDepth() {
+		AsyncGroupSynchronizer synchronizer = groupSynchronizer;
+		return synchronizer == null ? 0 : synchronizer.getQueueDepth();
+	}
+
+	/**
+	 * Publishes the changes made by this node to the other ones, and applies
+	 * theirs to the local caches
+	 * 
+	 * @param bus
+	 */
+	public void setInvalidationBus(InvalidationBus bus) {
+		invalidationBus.removeListener(clusterListener);
+		invalidationBus = bus;
+		bus.addListener(clusterListener);
+	}
+
+	/**
+	 * Drains pending asynchronous work; to be called when the webapp stops
+	 */
+	public synchronized void shutdown() {
+		if (groupSynchronizer != null) {
+			groupSynchronizer.shutdown();
+			groupSynchronizer = null;
+		}
+	}
+
+	/**
+	 * @param principal
+	 * @param groups
+	 * @return true if the groups were already synchronized and
+	 *         {@link #createOrUpdateGroups(String, List)} would do nothing
+	 */
+	protected boolean isGroupsSynchronized(String principal, List<String> groups) {
+		if (groups == null || groups.size() == 0) {
+			return true;
+		}
+		return groupsFingerprint(groups).equals(groupFingerprints.get(principal));
+	}
+
+	/**
+	 * Forgets the last synchronized membership, so that the next
+	 * {@link #createOrUpdateGroups(String, List)} reconciles again
+	 * 
+	 * @param principal
+	 */
+	public void invalidateGroups(String principal) {
+		if (principal != null) {
+			groupFingerprints.remove(principal);
+		}
+	}
+
+	/**
+	 * @param groups
+	 * @return a SHA-1 hash of the sorted group set, independent of order and
+	 *         duplicates
+	 */
+	protected static String groupsFingerprint(List<String> groups) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			for (String group : new TreeSet<String>(groups)) {
+				digest.update(group.getBytes("UTF-8"));
+				digest.update((byte) 0);
+			}
+			return new BigInteger(1, digest.digest()).toString(16);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Authenticates the session as guest. Sessions already holding the guest
+	 * user only revalidate their ticket, with no repository transaction.
+	 * 
+	 * @param session
+	 */
 	public void authenticateAsGuest(final HttpSession session) {
-		transactionalHelper.doInTransaction(new Transactionable() {
-			public Object execute() {
-				authenticationService.authenticateAsGuest();
-				NodeRef guestRef = personService.getPerson(PermissionService.GUEST_AUTHORITY);
-				User user = new User(PermissionService.GUEST_AUTHORITY, authenticationService.getCurrentTicket(), guestRef);
-				NodeRef guestHomeRef = (NodeRef) nodeService.getProperty(guestRef, ContentModel.PROP_HOMEFOLDER);
-				user.setHomeSpaceId(guestHomeRef.getId());
-				session.setAttribute(AuthenticationHelper.AUTHENTICATION_USER, user);
-				return null;
+		if (restoreSecurityContext(session, PermissionService.GUEST_AUTHORITY)) {
+			return;
+		}
+		session.setAttribute(AuthenticationHelper.AUTHENTICATION_USER, authenticateAsGuest());
+	}
+
+	/**
+	 * Authenticates the current thread as guest, without any session. The
+	 * guest ticket is issued and the cached guest person read in a read-write
+	 * transaction, as Alfresco's AuthenticationHelper does.
+	 * 
+	 * @return the guest user, to be stored in a session once one is needed
+	 */
+	public User authenticateAsGuest() {
+		long start = System.nanoTime();
+		try {
+			return (User) transactionalHelper.doInTransaction(new Transactionable() {
+				public Object execute() {
+					// the person lookup needs the guest security context, not
+					// the one left on this thread by a previous request
+					authenticationService.authenticateAsGuest();
+					PersonRefs guest = getPersonRefs(PermissionService.GUEST_AUTHORITY);
+					User user = new User(PermissionService.GUEST_AUTHORITY, authenticationService.getCurrentTicket(), guest.personRef);
+					user.setHomeSpaceId(guest.homeSpaceId);
+					return user;
+				}
+			});
+		} finally {
+			AuthenticationMetrics.record(Stage.GUEST_AUTHENTICATION, start);
+		}
+	}
+
+	/**
+	 * Person node and home space id of a user
+	 */
+	protected static final class PersonRefs implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		final NodeRef personRef;
+		final String homeSpaceId;
+
+		PersonRefs(NodeRef personRef, String homeSpaceId) {
+			this.personRef = personRef;
+			this.homeSpaceId = homeSpaceId;
+		}
+	}
+
+	/**
+	 * Evicts cached person data when a person node is deleted, renamed or
+	 * gets a new home folder
+	 */
+	class PersonPolicies implements NodeServicePolicies.BeforeDeleteNodePolicy, NodeServicePolicies.OnUpdatePropertiesPolicy {
+
+		public void beforeDeleteNode(NodeRef nodeRef) {
+			final String userName = (String) nodeService.getProperty(nodeRef, ContentModel.PROP_USERNAME);
+			invalidatePerson(userName);
+			if (userName != null) {
+				invalidateGroups(userName);
+				AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter() {
+					@Override
+					public void afterCommit() {
+						SessionRegistry.getInstance().invalidatePrincipal(userName);
+						invalidationBus.publish(Region.PRINCIPAL, userName);
+					}
+				});
 			}
-		});
+		}
+
+		public void onUpdateProperties(NodeRef nodeRef, Map<QName, Serializable> before, Map<QName, Serializable> after) {
+			if (changed(ContentModel.PROP_HOMEFOLDER, before, after) || changed(ContentModel.PROP_USERNAME, before, after)) {
+				String oldUserName = (String) before.get(ContentModel.PROP_USERNAME);
+				String newUserName = (String) after.get(ContentModel.PROP_USERNAME);
+				// fingerprints are keyed by user name, while memberships follow
+				// the person node
+				invalidatePerson(oldUserName);
+				invalidateGroups(oldUserName);
+				invalidatePerson(newUserName);
+				invalidateGroups(newUserName);
+				invalidationBus.publish(Region.PERSON, oldUserName);
+				invalidationBus.publish(Region.PERSON, newUserName);
+			}
+		}
+
+		private boolean changed(QName property, Map<QName, Serializable> before, Map<QName, Serializable> after) {
+			Serializable oldValue = before.get(property);
+			Serializable newValue = after.get(property);
+			return oldValue == null ? newValue != null : !oldValue.equals(newValue);
+		}
+	}
+
+	/**
+	 * Applies the changes published by other nodes to the local caches
+	 */
+	class ClusterInvalidationListener implements InvalidationListener {
+
+		public void invalidated(Region region, String key) {
+			switch (region) {
+			case IDENTITY:
+				invalidateGroups(key);
+				break;
+			case PERSON:
+				invalidatePerson(key);
+				invalidateGroups(key);
+				break;
+			case PRINCIPAL:
+				invalidatePerson(key);
+				invalidateGroups(key);
+				SessionRegistry.getInstance().invalidatePrincipal(key);
+				break;
+			default:
+				break;
+			}
+		}
 	}
 }
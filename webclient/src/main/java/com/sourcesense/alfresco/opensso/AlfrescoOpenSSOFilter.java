@@ -17,8 +17,6 @@
 package com.sourcesense.alfresco.opensso;
 
 import java.io.IOException;
-import java.util.Enumeration;
-import java.util.List;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -31,11 +29,18 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
 import org.alfresco.web.app.servlet.AbstractAuthenticationFilter;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.web.context.support.WebApplicationContextUtils;
 
 import com.iplanet.sso.SSOToken;
+import com.sourcesense.alfresco.monitor.AuthenticationMetrics;
+import com.sourcesense.alfresco.monitor.AuthenticationMetrics.Counter;
+import com.sourcesense.alfresco.monitor.AuthenticationMetrics.Stage;
+import com.sourcesense.alfresco.opensso.RequestRouter.Route;
+import com.sourcesense.alfresco.opensso.SessionActionClassifier.Action;
 
 /**
  * Filter implementation that replace Alfresco's default AuthenticationFilter in
@@ -48,12 +53,45 @@ public class AlfrescoOpenSSOFilter extends AbstractAuthenticationFilter implemen
 
 	private static Log logger = LogFactory.getLog(AlfrescoOpenSSOFilter.class);
 
-	private OpenSSOClient openSSOClient;
-	private AlfrescoFacade alfrescoFacade;
+	/**
+	 * Session attribute holding the ID of the OpenSSO token the session was
+	 * authenticated with
+	 */
+	public static final String OPENSSO_TOKEN_ID = "_openSSOTokenID";
+
+	public static final String PARAM_ASYNC_GROUP_SYNC = "asyncGroupSync";
+	public static final String PARAM_ASYNC_GROUP_SYNC_QUEUE = "asyncGroupSyncQueueSize";
+	public static final String PARAM_ASYNC_GROUP_SYNC_BATCH = "asyncGroupSyncBatchSize";
+	public static final String PARAM_PRELOAD_PRINCIPALS = "preloadPrincipals";
+	public static final String PARAM_WARM_UP = "warmUp";
+
+	/**
+	 * Port of the cache invalidation bus, distinct from Share's so that both
+	 * webapps can be deployed in the same JVM
+	 */
+	public static final int DEFAULT_CLUSTER_PORT = 47810;
+
+	private static final int DEFAULT_ASYNC_GROUP_SYNC_QUEUE = 10000;
+	private static final int DEFAULT_ASYNC_GROUP_SYNC_BATCH = 100;
+
+	private volatile OpenSSOClient openSSOClient;
+	private volatile AlfrescoFacade alfrescoFacade;
 	private ServletContext servletContext;
+	private boolean asyncGroupSync;
+	private int asyncGroupSyncQueueSize;
+	private int asyncGroupSyncBatchSize;
+	private boolean preloadPrincipals;
+	private RequestRouter router = new RequestRouter(Route.GUEST);
+	private SignedSessionCookie signedCookie;
 
 	public void destroy() {
-
+		if (alfrescoFacade != null) {
+			alfrescoFacade.shutdown();
+		}
+		if (openSSOClient != null) {
+			openSSOClient.shutdown();
+		}
+		AuthenticationMetrics.getInstance().unregister();
 	}
 	
 	
@@ -62,89 +100,196 @@ public class AlfrescoOpenSSOFilter extends AbstractAuthenticationFilter implemen
 		
 		HttpServletRequest httpRequest = (HttpServletRequest) request;
 		HttpServletResponse httpResponse = (HttpServletResponse) response;
-		HttpSession httpSession = httpRequest.getSession();
 		
-		request.setCharacterEncoding("UTF-8");
+		Route route = router.route(httpRequest);
+		if (route == Route.BYPASS) {
+			AuthenticationMetrics.count(Counter.BYPASSED_REQUESTS);
+			// a pooled thread may still carry the user of its previous request
+			AuthenticationUtil.clearCurrentSecurityContext();
+			chain.doFilter(request, response);
+			return;
+		}
 		
-		SSOToken token = getOpenSSOClient().createTokenFrom(httpRequest);
+		long start = System.nanoTime();
+		HttpServletRequest proceedWith;
+		try {
+			proceedWith = authenticate(httpRequest, httpResponse, route);
+		} finally {
+			AuthenticationMetrics.record(Stage.FILTER, start);
+		}
+		if (proceedWith != null) {
+			chain.doFilter(proceedWith, response);
+		}
+	}
+
+	/**
+	 * Runs the SSO pipeline for the request
+	 * 
+	 * @return the request to go on along the chain with, or null if it was
+	 *         redirected
+	 */
+	private HttpServletRequest authenticate(HttpServletRequest httpRequest, HttpServletResponse httpResponse, Route route) throws IOException {
 		
-		boolean isLoginRequest = isLoginRequest(httpRequest);
-		boolean isLogoutRequest = isLogoutRequest(httpRequest);
-		boolean isGuestRequest =  (token==null  && !isLoginRequest && !isLogoutRequest);
-		boolean isNormalRequest = (token!=null && !isLoginRequest && !isLogoutRequest);
+		httpRequest.setCharacterEncoding("UTF-8");
 		
+		Action action = SessionActionClassifier.classify(httpRequest);
+		String sessionCookie = null;
+		if (signedCookie != null) {
+			sessionCookie = getOpenSSOClient().getSessionCookie(httpRequest);
+			if (action == Action.NONE && isSignedSession(httpRequest, sessionCookie)) {
+				AuthenticationMetrics.count(Counter.SIGNED_COOKIE_SESSIONS);
+				return httpRequest;
+			}
+		}
 
-		if(isLoginRequest) {
-			httpSession.invalidate();
-			httpResponse.sendRedirect(buildURLForRedirect(request));
+		SSOToken token = null;
+		if (getOpenSSOClient().hasSessionCookie(httpRequest)) {
+			token = getOpenSSOClient().createTokenFrom(httpRequest);
 		}
 		
+		boolean isLoginRequest = action == Action.LOGIN;
+		boolean isLogoutRequest = action == Action.LOGOUT;
+		boolean isGuestRequest =  (token==null  && !isLoginRequest && !isLogoutRequest);
+		
 
-		if(isGuestRequest) {
-			getAlfrescoFacade().authenticateAsGuest(httpSession);
-			chain.doFilter(request, response);
+		if (signedCookie != null && (token == null || isLoginRequest || isLogoutRequest)) {
+			signedCookie.clear(httpRequest, httpResponse);
+		}
+
+		if(isLoginRequest) {
+			AuthenticationMetrics.count(Counter.LOGIN_REQUESTS);
+			invalidateSession(httpRequest);
+			httpResponse.sendRedirect(buildURLForRedirect(httpRequest));
+			return null;
 		}
 		
 		if(isLogoutRequest) {
-			doLogout(httpSession, token);
-			httpResponse.sendRedirect(buildURLForRedirect(request));
+			AuthenticationMetrics.count(Counter.LOGOUT_REQUESTS);
+			doLogout(httpRequest, token);
+			httpResponse.sendRedirect(buildURLForRedirect(httpRequest));
+			return null;
 		}
-		
-		if (isNormalRequest) {
-			String principal = getOpenSSOClient().getPrincipal(token);
-			if (!getAlfrescoFacade().existUser(principal)) {
-				String email = getOpenSSOClient().getUserAttribute(OpenSSOClient.ATTR_EMAIL, token);
-				String fullName = getOpenSSOClient().getUserAttribute(OpenSSOClient.ATTR_FULL_NAME, token);
-				String firstName = getOpenSSOClient().getUserAttribute(OpenSSOClient.ATTR_LAST_NAME, token);
-				getAlfrescoFacade().createUser(principal, email, firstName, fullName);
+
+		if (isGuestRequest && route == Route.AUTHENTICATE) {
+			AuthenticationMetrics.count(Counter.LOGIN_REDIRECTS);
+			httpResponse.sendRedirect(buildURLForRedirect(httpRequest));
+			return null;
+		}
+
+		if(isGuestRequest) {
+			AuthenticationMetrics.count(Counter.GUEST_REQUESTS);
+			HttpSession httpSession = httpRequest.getSession(false);
+			if (httpSession != null) {
+				getAlfrescoFacade().authenticateAsGuest(httpSession);
+				return httpRequest;
 			}
-			List<String> groups = getOpenSSOClient().getGroups(token);
-			getAlfrescoFacade().createOrUpdateGroups(principal, groups);
-			getAlfrescoFacade().setAuthenticatedUser(httpRequest,httpResponse,httpSession, principal);
-			chain.doFilter(request, response);
-		} 
-		
-		
+			// anonymous clients such as crawlers and probes get no session,
+			// unless a page down the chain needs one
+			return new GuestSessionRequest(httpRequest, getAlfrescoFacade().authenticateAsGuest());
+		}
 		
+		if (isAuthenticatedSession(httpRequest.getSession(false), token)) {
+			AuthenticationMetrics.count(Counter.RESTORED_SESSIONS);
+		} else {
+			HttpSession httpSession = httpRequest.getSession();
+			OpenSSOIdentity identity = getOpenSSOClient().getIdentity(token);
+			getAlfrescoFacade().provisionUser(httpRequest, httpResponse, httpSession, identity);
+			httpSession.setAttribute(OPENSSO_TOKEN_ID, getOpenSSOClient().getTokenId(token));
+		}
+		if (signedCookie != null) {
+			signedCookie.issue(httpRequest, httpResponse, getOpenSSOClient().getPrincipal(token), sessionCookie,
+					getOpenSSOClient().cacheExpirationFor(token));
+		}
+		return httpRequest;
 	}
 
+	/**
+	 * Local-only path: the request carries a fresh signed cookie for its
+	 * OpenSSO session, and the HTTP session belongs to the signed principal
+	 * 
+	 * @return true if the security context was restored without contacting
+	 *         OpenSSO
+	 */
+	private boolean isSignedSession(HttpServletRequest httpRequest, String sessionCookie) {
+		HttpSession httpSession = httpRequest.getSession(false);
+		if (httpSession == null) {
+			return false;
+		}
+		String principal = signedCookie.verify(httpRequest, sessionCookie);
+		return principal != null && getAlfrescoFacade().restoreSecurityContext(httpSession, principal);
+	}
+
+
+	/**
+	 * Fast path for sessions already authenticated with the same, recently
+	 * validated, OpenSSO token: only the security context is restored, without
+	 * any repository transaction
+	 * 
+	 * @return true if the security context was restored from the session
+	 */
+	private boolean isAuthenticatedSession(HttpSession httpSession, SSOToken token) {
+		if (httpSession == null) {
+			return false;
+		}
+		Object sessionTokenId = httpSession.getAttribute(OPENSSO_TOKEN_ID);
+		if (sessionTokenId == null || !sessionTokenId.equals(getOpenSSOClient().getTokenId(token))) {
+			return false;
+		}
+		return getAlfrescoFacade().restoreSecurityContext(httpSession, getOpenSSOClient().getPrincipal(token));
+	}
 
-	private void doLogout(HttpSession httpSession, SSOToken token) {
+	private void doLogout(HttpServletRequest httpRequest, SSOToken token) {
 		getOpenSSOClient().destroyToken(token);
-		httpSession.invalidate();
+		invalidateSession(httpRequest);
 	}
-	
-	private boolean isLoginRequest(HttpServletRequest request) {
-		Enumeration parameterNames = request.getParameterNames();
-		while (parameterNames.hasMoreElements()) {
-			String  parameter = (String ) parameterNames.nextElement();
-			String[] string = request.getParameterValues(parameter);
-			for (int i = 0; i < string.length; i++) {
-				if(string[i]!=null && string[i].contains(":login")) {
-					return true;
-				}
-			}
+
+	/**
+	 * Invalidates the current session, if any, without creating one
+	 */
+	private void invalidateSession(HttpServletRequest httpRequest) {
+		HttpSession httpSession = httpRequest.getSession(false);
+		if (httpSession != null) {
+			httpSession.invalidate();
 		}
-		return false;
 	}
+	
+	public void init(FilterConfig config) throws ServletException {
+		servletContext = config.getServletContext();
+		router = RequestRouter.fromConfig(config, Route.GUEST);
+		signedCookie = SignedSessionCookie.fromConfig(config);
+		AuthenticationMetrics.getInstance().register(servletContext.getServletContextName());
+		asyncGroupSync = Boolean.parseBoolean(config.getInitParameter(PARAM_ASYNC_GROUP_SYNC));
+		asyncGroupSyncQueueSize = getIntParameter(config, PARAM_ASYNC_GROUP_SYNC_QUEUE, DEFAULT_ASYNC_GROUP_SYNC_QUEUE);
+		asyncGroupSyncBatchSize = getIntParameter(config, PARAM_ASYNC_GROUP_SYNC_BATCH, DEFAULT_ASYNC_GROUP_SYNC_BATCH);
+		preloadPrincipals = Boolean.parseBoolean(config.getInitParameter(PARAM_PRELOAD_PRINCIPALS));
+		boolean warmUp = Boolean.parseBoolean(config.getInitParameter(PARAM_WARM_UP));
 
-	private boolean isLogoutRequest(HttpServletRequest request) {
-		Enumeration parameterNames = request.getParameterNames();
-		while (parameterNames.hasMoreElements()) {
-			String  parameter = (String ) parameterNames.nextElement();
-			String[] string = request.getParameterValues(parameter);
-			for (int i = 0; i < string.length; i++) {
-				if(string[i]!=null && string[i].contains(":logout")) {
-					return true;
-				}
+		OpenSSOClient client = getOpenSSOClient();
+		client.joinCluster(DEFAULT_CLUSTER_PORT);
+		if (warmUp) {
+			client.warmUp();
+		}
+		if (WebApplicationContextUtils.getWebApplicationContext(servletContext) != null) {
+			AlfrescoFacade facade = getAlfrescoFacade();
+			if (warmUp) {
+				facade.warmUp();
 			}
+		} else {
+			logger.debug("Spring context not available yet, Alfresco facade will be created on first request");
 		}
-		return false;
 	}
 
-	public void init(FilterConfig config) throws ServletException {
-		servletContext = config.getServletContext();
-		
+	protected static int getIntParameter(FilterConfig config, String name, int defaultValue) {
+		String value = config.getInitParameter(name);
+		if (value == null || value.trim().length() == 0) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			logger.warn("Invalid value for filter parameter " + name + ": " + value);
+			return defaultValue;
+		}
 	}
 
 	protected String getOpenSSOLoginURL() {
@@ -159,17 +304,42 @@ public class AlfrescoOpenSSOFilter extends AbstractAuthenticationFilter implemen
 
 
 	public OpenSSOClient getOpenSSOClient() {
-		if(openSSOClient == null) {
-			openSSOClient = OpenSSOClient.instance();
+		OpenSSOClient client = openSSOClient;
+		if (client == null) {
+			client = OpenSSOClient.instance();
+			openSSOClient = client;
 		}
-		return openSSOClient;
+		return client;
 	}
 
+	/**
+	 * @return the facade built at init, or built now if the Spring context
+	 *         was not available yet
+	 */
 	public AlfrescoFacade getAlfrescoFacade() {
-		if (alfrescoFacade == null) {
-			alfrescoFacade = new AlfrescoFacade(servletContext);
+		AlfrescoFacade facade = alfrescoFacade;
+		if (facade == null) {
+			synchronized (this) {
+				facade = alfrescoFacade;
+				if (facade == null) {
+					facade = createAlfrescoFacade();
+					alfrescoFacade = facade;
+				}
+			}
+		}
+		return facade;
+	}
+
+	private AlfrescoFacade createAlfrescoFacade() {
+		AlfrescoFacade facade = new AlfrescoFacade(servletContext);
+		facade.setInvalidationBus(getOpenSSOClient().getInvalidationBus());
+		if (asyncGroupSync) {
+			facade.enableAsynchronousGroupSync(asyncGroupSyncQueueSize, asyncGroupSyncBatchSize);
+		}
+		if (preloadPrincipals) {
+			facade.preloadKnownPrincipals();
 		}
-		return alfrescoFacade;
+		return facade;
 	}
 
 	public void setAlfrescoFacade(AlfrescoFacade alfrescoFacade) {
@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.opensso;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.sourcesense.alfresco.monitor.AuthenticationMetrics;
+
+/**
+ * Write-behind queue for group membership synchronization. Updates are
+ * merged per principal and applied by a background worker, many principals
+ * per transaction, so request threads never wait on authority writes. When
+ * a batch fails its principals are retried one transaction each, and those
+ * still failing are left to the next request to reconcile.
+ * <p>
+ * Updates still queued are only applied if {@link #shutdown()} runs, from
+ * the filter's destroy. Should the JVM stop without it, they are lost: the
+ * memberships of those principals stay stale until their next provisioning,
+ * usually their next login, which finds no fingerprint and reconciles again.
+ * 
+ * @author g.fernandes@sourcesense.com
+ * 
+ */
+public class AsyncGroupSynchronizer {
+
+	private static Log logger = LogFactory.getLog(AsyncGroupSynchronizer.class);
+
+	private static final long POLL_TIMEOUT = 500;
+	private static final long SHUTDOWN_TIMEOUT = 30000;
+
+	private final AlfrescoFacade alfrescoFacade;
+	private final int batchSize;
+	private final LinkedBlockingQueue<String> queue;
+	private final ConcurrentHashMap<String, List<String>> pending = new ConcurrentHashMap<String, List<String>>();
+	private final Thread worker;
+	private volatile boolean running = true;
+
+	public AsyncGroupSynchronizer(AlfrescoFacade alfrescoFacade, int capacity, int batchSize) {
+		this.alfrescoFacade = alfrescoFacade;
+		this.batchSize = batchSize;
+		this.queue = new LinkedBlockingQueue<String>(capacity);
+		this.worker = new Thread(new Runnable() {
+			public void run() {
+				work();
+			}
+		}, "OpenSSO group synchronizer");
+		worker.setDaemon(true);
+		worker.start();
+		AuthenticationMetrics.getInstance().setGroupSyncQueue(queue);
+	}
+
+	/**
+	 * Queues the membership of a principal, replacing any update still
+	 * pending for it
+	 * 
+	 * @param principal
+	 * @param groups
+	 * @return false if the queue is full or shut down, and the caller must
+	 *         synchronize by itself
+	 */
+	public boolean submit(String principal, List<String> groups) {
+		if (!running) {
+			return false;
+		}
+		if (pending.put(principal, groups) != null) {
+			return true;
+		}
+		if (!queue.offer(principal)) {
+			pending.remove(principal, groups);
+			return false;
+		}
+		return true;
+	}
+
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * Stops accepting updates and waits until the pending ones are applied
+	 */
+	public void shutdown() {
+		running = false;
+		try {
+			worker.join(SHUTDOWN_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (!queue.isEmpty()) {
+			logger.warn(queue.size() + " group updates not applied at shutdown");
+		}
+		AuthenticationMetrics.getInstance().setGroupSyncQueue(null);
+	}
+
+	private void work() {
+		List<String> principals = new ArrayList<String>(batchSize);
+		Map<String, List<String>> batch = new HashMap<String, List<String>>();
+		while (running || !queue.isEmpty()) {
+			try {
+				String first = queue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				principals.add(first);
+				queue.drainTo(principals, batchSize - 1);
+				for (String principal : principals) {
+					List<String> groups = pending.remove(principal);
+					if (groups != null) {
+						batch.put(principal, groups);
+					}
+				}
+				alfrescoFacade.synchronizeGroups(batch);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (RuntimeException e) {
+				logger.warn("Failed to synchronize groups of " + batch.keySet() + ", retrying one by one", e);
+				retryIndividually(batch);
+			} finally {
+				principals.clear();
+				batch.clear();
+			}
+		}
+	}
+
+	/**
+	 * Isolates the principals that made a batch fail; their fingerprints are
+	 * cleared so that their next request synchronizes again
+	 */
+	private void retryIndividually(Map<String, List<String>> batch) {
+		for (Map.Entry<String, List<String>> entry : batch.entrySet()) {
+			try {
+				if (batch.size() > 1) {
+					alfrescoFacade.synchronizeGroups(Collections.singletonMap(entry.getKey(), entry.getValue()));
+					continue;
+				}
+			} catch (RuntimeException e) {
+				logger.error("Failed to synchronize groups of " + entry.getKey(), e);
+			}
+			alfrescoFacade.invalidateGroups(entry.getKey());
+		}
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.opensso;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpSession;
+
+import org.alfresco.web.app.servlet.AuthenticationHelper;
+import org.alfresco.web.bean.repository.User;
+
+/**
+ * Request of a guest without session. The session is only created, holding
+ * the guest user, if something down the chain asks for one.
+ * 
+ * @author g.fernandes@sourcesense.com
+ * 
+ */
+public class GuestSessionRequest extends HttpServletRequestWrapper {
+
+	private final User guest;
+
+	public GuestSessionRequest(HttpServletRequest request, User guest) {
+		super(request);
+		this.guest = guest;
+	}
+
+	@Override
+	public HttpSession getSession() {
+		return getSession(true);
+	}
+
+	@Override
+	public HttpSession getSession(boolean create) {
+		HttpSession session = super.getSession(false);
+		if (session == null && create) {
+			session = super.getSession(true);
+			if (session.getAttribute(AuthenticationHelper.AUTHENTICATION_USER) == null) {
+				session.setAttribute(AuthenticationHelper.AUTHENTICATION_USER, guest);
+			}
+		}
+		return session;
+	}
+}
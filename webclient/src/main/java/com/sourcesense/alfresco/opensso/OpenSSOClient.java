@@ -16,10 +16,22 @@
  */
 package com.sourcesense.alfresco.opensso;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 
 import org.apache.commons.logging.Log;
@@ -27,10 +39,25 @@ import org.apache.commons.logging.LogFactory;
 
 import com.iplanet.sso.SSOException;
 import com.iplanet.sso.SSOToken;
+import com.iplanet.sso.SSOTokenEvent;
+import com.iplanet.sso.SSOTokenListener;
 import com.iplanet.sso.SSOTokenManager;
 import com.sun.identity.idm.IdRepoException;
 import com.sun.identity.idm.IdUtils;
 import com.sun.identity.shared.configuration.SystemPropertiesManager;
+import com.sourcesense.alfresco.cache.FrequencyCache;
+import com.sourcesense.alfresco.cache.InMemoryTokenCache;
+import com.sourcesense.alfresco.cache.MappedFileTokenCache;
+import com.sourcesense.alfresco.cache.OffHeapTokenCache;
+import com.sourcesense.alfresco.cache.TokenCache;
+import com.sourcesense.alfresco.cluster.InvalidationBus;
+import com.sourcesense.alfresco.cluster.InvalidationBus.Region;
+import com.sourcesense.alfresco.cluster.InvalidationListener;
+import com.sourcesense.alfresco.cluster.NullInvalidationBus;
+import com.sourcesense.alfresco.cluster.TcpInvalidationBus;
+import com.sourcesense.alfresco.monitor.AuthenticationMetrics;
+import com.sourcesense.alfresco.monitor.AuthenticationMetrics.Counter;
+import com.sourcesense.alfresco.monitor.AuthenticationMetrics.Stage;
 
 /**
  * Adapter of OpenSSO client SDK
@@ -49,16 +76,77 @@ public class OpenSSOClient {
 	public static final String ATTR_HOME_ADDRESS = "postaladdress";
 	public static final String ATTR_TELEFONE = "telephonenumber";
 	public static final String ATTR_GROUPS = "memberof";
+	public static final Set<String> IDENTITY_ATTRIBUTES = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(ATTR_UID, ATTR_LAST_NAME,
+			ATTR_FULL_NAME, ATTR_EMAIL, ATTR_HOME_ADDRESS, ATTR_TELEFONE, ATTR_GROUPS)));
 	public static final String NAMING_URL_PROPERTY = "com.iplanet.am.naming.url";
+	public static final String COOKIE_NAME_PROPERTY = "com.iplanet.am.cookie.name";
+	public static final String DEFAULT_COOKIE_NAME = "iPlanetDirectoryPro";
+	public static final String TOKEN_CACHE_SIZE_PROPERTY = "com.sourcesense.alfresco.opensso.tokencache.size";
+	public static final String TOKEN_CACHE_TTL_PROPERTY = "com.sourcesense.alfresco.opensso.tokencache.ttl";
+	public static final String TOKEN_CACHE_TYPE_PROPERTY = "com.sourcesense.alfresco.opensso.tokencache.type";
+	public static final String TOKEN_CACHE_FILE_PROPERTY = "com.sourcesense.alfresco.opensso.tokencache.file";
+	public static final String TOKEN_CACHE_KEY_PROPERTY = "com.sourcesense.alfresco.opensso.tokencache.key";
+	public static final String CLUSTER_PORT_PROPERTY = "com.sourcesense.alfresco.opensso.cluster.port";
+	public static final String CLUSTER_BIND_PROPERTY = "com.sourcesense.alfresco.opensso.cluster.bind";
+	public static final String CLUSTER_PEERS_PROPERTY = "com.sourcesense.alfresco.opensso.cluster.peers";
+	public static final String CLUSTER_SECRET_PROPERTY = "com.sourcesense.alfresco.opensso.cluster.secret";
+	public static final String CLUSTER_FLUSH_INTERVAL_PROPERTY = "com.sourcesense.alfresco.opensso.cluster.flushInterval";
+	public static final String TOKEN_CACHE_OFF_HEAP = "offheap";
+	public static final String TOKEN_CACHE_MAPPED = "mapped";
+	public static final String IDENTITY_CACHE_SIZE_PROPERTY = "com.sourcesense.alfresco.opensso.identitycache.size";
+	public static final String IDENTITY_CACHE_TTL_PROPERTY = "com.sourcesense.alfresco.opensso.identitycache.ttl";
+
+	private static final int DEFAULT_TOKEN_CACHE_SIZE = 10000;
+	private static final long DEFAULT_TOKEN_CACHE_TTL = 60;
+	private static final int DEFAULT_IDENTITY_CACHE_SIZE = 50000;
+	private static final long DEFAULT_IDENTITY_CACHE_TTL = 300;
+	private static final long DEFAULT_CLUSTER_FLUSH_INTERVAL = 20;
+	private static final int CLUSTER_MAX_BATCH = 1000;
+	private static final int CLUSTER_MAX_PENDING = 100000;
+	private static final int MAX_LISTENED_TOKENS = 100000;
 
 	protected static SSOTokenManager tokenManager;
-	private static OpenSSOClient instance;
+	private static volatile OpenSSOClient instance;
+	
+	private TokenCache tokenCache;
+	private long tokenCacheTTL;
+	private FrequencyCache<String, OpenSSOIdentity> identityCache;
+	private String cookieName;
+	private final SSOTokenListener tokenListener = new TokenInvalidationListener();
+	private final ConcurrentHashMap<String, Boolean> listenedTokens = new ConcurrentHashMap<String, Boolean>();
+	private volatile InvalidationBus invalidationBus = new NullInvalidationBus();
 	
 	public static OpenSSOClient instance() {
-		if(instance == null) {
-			instance = new OpenSSOClient();
+		OpenSSOClient client = instance;
+		if (client == null) {
+			synchronized (OpenSSOClient.class) {
+				client = instance;
+				if (client == null) {
+					client = new OpenSSOClient();
+					instance = client;
+				}
+			}
+		}
+		return client;
+	}
+
+	/**
+	 * Forces the SDK to bootstrap its naming and session services, which
+	 * would otherwise happen on the first validated request. Validating an
+	 * unknown session is expected to fail once the services are reached, but
+	 * the failure is also the only sign of an unreachable OpenSSO, so it is
+	 * logged as a warning. Never fails the caller.
+	 */
+	public void warmUp() {
+		long start = System.currentTimeMillis();
+		try {
+			tokenManager.createSSOToken("warm-up");
+		} catch (SSOException e) {
+			logger.warn("Warm-up session rejected, expected unless OpenSSO is unreachable: " + e.getMessage());
+		} catch (RuntimeException e) {
+			logger.warn("OpenSSO SDK warm-up failed", e);
 		}
-		return instance;
+		logger.info("OpenSSO SDK warmed up in " + (System.currentTimeMillis() - start) + "ms");
 	}
 
 	protected OpenSSOClient() {
@@ -67,6 +155,141 @@ public class OpenSSOClient {
 		} catch (SSOException e) {
 			logger.error("Error obtained SSOTOkenManager instance");
 		}
+		cookieName = SystemPropertiesManager.get(COOKIE_NAME_PROPERTY);
+		if (cookieName == null) {
+			cookieName = DEFAULT_COOKIE_NAME;
+		}
+		tokenCacheTTL = getLongProperty(TOKEN_CACHE_TTL_PROPERTY, DEFAULT_TOKEN_CACHE_TTL) * 1000;
+		tokenCache = createTokenCache((int) getLongProperty(TOKEN_CACHE_SIZE_PROPERTY, DEFAULT_TOKEN_CACHE_SIZE));
+		AuthenticationMetrics.getInstance().registerCache("token", tokenCache);
+		identityCache = new FrequencyCache<String, OpenSSOIdentity>((int) getLongProperty(IDENTITY_CACHE_SIZE_PROPERTY, DEFAULT_IDENTITY_CACHE_SIZE),
+				getLongProperty(IDENTITY_CACHE_TTL_PROPERTY, DEFAULT_IDENTITY_CACHE_TTL) * 1000);
+		AuthenticationMetrics.getInstance().registerCache("identity", identityCache);
+	}
+
+	/**
+	 * Joins the configured peers, so that evictions reach the other nodes;
+	 * without peers caches are only invalidated locally. Does nothing once
+	 * joined.
+	 * 
+	 * @param defaultPort
+	 *            port of the calling webapp, unless the port property is set;
+	 *            webapps sharing a JVM must listen on different ports
+	 * @throws IllegalArgumentException
+	 *             if peers are configured without the secret or the bind
+	 *             address
+	 * @throws IllegalStateException
+	 *             if the port cannot be listened on, rather than leaving the
+	 *             node out of the cluster unnoticed
+	 */
+	public synchronized void joinCluster(int defaultPort) {
+		if (!(invalidationBus instanceof NullInvalidationBus)) {
+			return;
+		}
+		InvalidationBus bus = createInvalidationBus(defaultPort);
+		bus.addListener(new ClusterInvalidationListener());
+		invalidationBus = bus;
+	}
+
+	/**
+	 * Peers listed without a port are reached on the port of this webapp.
+	 * The bind address is required, as the loopback default of the bus
+	 * would never be reached by another node.
+	 */
+	protected InvalidationBus createInvalidationBus(int defaultPort) {
+		String portValue = getClusterProperty(CLUSTER_PORT_PROPERTY);
+		int port = portValue == null || portValue.trim().length() == 0 ? defaultPort : Integer.parseInt(portValue.trim());
+		List<InetSocketAddress> peers = TcpInvalidationBus.parsePeers(getClusterProperty(CLUSTER_PEERS_PROPERTY), port);
+		if (peers.isEmpty()) {
+			return new NullInvalidationBus();
+		}
+		String secret = getClusterProperty(CLUSTER_SECRET_PROPERTY);
+		if (secret == null || secret.trim().length() == 0) {
+			throw new IllegalArgumentException(CLUSTER_SECRET_PROPERTY + " is required when " + CLUSTER_PEERS_PROPERTY + " is set");
+		}
+		String bind = getClusterProperty(CLUSTER_BIND_PROPERTY);
+		if (bind == null || bind.trim().length() == 0) {
+			throw new IllegalArgumentException(CLUSTER_BIND_PROPERTY + " is required when " + CLUSTER_PEERS_PROPERTY + " is set");
+		}
+		TcpInvalidationBus bus;
+		try {
+			bus = new TcpInvalidationBus(InetAddress.getByName(bind.trim()), port, secret.trim().getBytes("UTF-8"), getLongProperty(
+					CLUSTER_FLUSH_INTERVAL_PROPERTY, DEFAULT_CLUSTER_FLUSH_INTERVAL), CLUSTER_MAX_BATCH, CLUSTER_MAX_PENDING);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Invalid " + CLUSTER_BIND_PROPERTY + ": " + bind, e);
+		}
+		for (InetSocketAddress peer : peers) {
+			bus.addPeer(peer);
+		}
+		try {
+			bus.start();
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to listen for cache invalidations on " + bind.trim() + ":" + port, e);
+		}
+		return bus;
+	}
+
+	protected String getClusterProperty(String name) {
+		return SystemPropertiesManager.get(name);
+	}
+
+	public InvalidationBus getInvalidationBus() {
+		return invalidationBus;
+	}
+
+	/**
+	 * Releases the cluster connections; to be called when the webapp stops
+	 */
+	public void shutdown() {
+		invalidationBus.close();
+	}
+	
+	/**
+	 * Token IDs are kept on the heap, unless the type property asks for the
+	 * off-heap store meant for very large session populations, or for the
+	 * memory-mapped file shared by the webapps of the host. The file must be
+	 * set explicitly, in a directory only the servlet container can write,
+	 * along with the key signing its entries, the same in every webapp.
+	 */
+	protected TokenCache createTokenCache(int maxEntries) {
+		String type = SystemPropertiesManager.get(TOKEN_CACHE_TYPE_PROPERTY);
+		if (TOKEN_CACHE_OFF_HEAP.equalsIgnoreCase(type)) {
+			return new OffHeapTokenCache(maxEntries);
+		}
+		if (TOKEN_CACHE_MAPPED.equalsIgnoreCase(type)) {
+			String path = SystemPropertiesManager.get(TOKEN_CACHE_FILE_PROPERTY);
+			if (path == null || path.trim().length() == 0) {
+				logger.warn("No " + TOKEN_CACHE_FILE_PROPERTY + " configured, falling back to a private token cache");
+				return new InMemoryTokenCache(maxEntries);
+			}
+			String key = SystemPropertiesManager.get(TOKEN_CACHE_KEY_PROPERTY);
+			if (key == null || key.trim().length() == 0) {
+				logger.warn("No " + TOKEN_CACHE_KEY_PROPERTY + " configured, falling back to a private token cache");
+				return new InMemoryTokenCache(maxEntries);
+			}
+			File file = new File(path.trim());
+			try {
+				return new MappedFileTokenCache(file, maxEntries, tokenCacheTTL, key.trim().getBytes("UTF-8"));
+			} catch (IOException e) {
+				logger.warn("Unable to share token cache in " + file + ", falling back to a private one", e);
+			} catch (IllegalArgumentException e) {
+				logger.warn("Invalid " + TOKEN_CACHE_KEY_PROPERTY + ", falling back to a private token cache", e);
+			}
+		}
+		return new InMemoryTokenCache(maxEntries);
+	}
+
+	protected static long getLongProperty(String name, long defaultValue) {
+		String value = SystemPropertiesManager.get(name);
+		if (value == null || value.trim().length() == 0) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			logger.warn("Invalid value for " + name + ": " + value);
+			return defaultValue;
+		}
 	}
 	
 	
@@ -75,6 +298,35 @@ public class OpenSSOClient {
 		return propNaming.replaceAll("namingservice", "UI/Login");
 	}
 	
+	/**
+	 * Cheap check, without involving the SDK, telling whether the request may
+	 * carry an OpenSSO session at all
+	 * 
+	 * @param request
+	 * @return true if the OpenSSO session cookie is present
+	 */
+	public boolean hasSessionCookie(HttpServletRequest request) {
+		return getSessionCookie(request) != null;
+	}
+
+	/**
+	 * @param request
+	 * @return value of the OpenSSO session cookie, or null if absent
+	 */
+	public String getSessionCookie(HttpServletRequest request) {
+		Cookie[] cookies = request.getCookies();
+		if (cookies == null) {
+			return null;
+		}
+		for (int i = 0; i < cookies.length; i++) {
+			if (cookieName.equals(cookies[i].getName())) {
+				String value = cookies[i].getValue();
+				return (value == null || value.length() == 0) ? null : value;
+			}
+		}
+		return null;
+	}
+
 	/**
 	 * Tries to create an SSOToken based on the HTTP request
 	 * 
@@ -82,21 +334,185 @@ public class OpenSSOClient {
 	 * @return The token or null if session not valid
 	 */
 	public  SSOToken createTokenFrom(HttpServletRequest request) {
-		SSOToken token = null;
 		try {
-			token = tokenManager.createSSOToken(request);
-			boolean sessionValid = tokenManager.isValidToken(token);
-			if (sessionValid) {
+			long start = System.nanoTime();
+			SSOToken token = tokenManager.createSSOToken(request);
+			AuthenticationMetrics.record(Stage.TOKEN_PARSING, start);
+			if (isValid(token)) {
 				return token;
 			}
 		} catch (SSOException e) {
 			logger.info("Request does not contain a valid session");
 		}
-		return token;
+		return null;
 	}
 	
-	public boolean isValid(SSOToken tokenID) {
-		return tokenManager.isValidToken(tokenID);
+	/**
+	 * Validates the token against OpenSSO, unless it was already validated
+	 * and its cache entry is still fresh
+	 * 
+	 * @param token
+	 * @return true if the session is valid
+	 */
+	public boolean isValid(SSOToken token) {
+		String tokenId = getTokenId(token);
+		if (tokenCache.contains(tokenId)) {
+			return true;
+		}
+		long start = System.nanoTime();
+		boolean valid = validateRemotely(token);
+		AuthenticationMetrics.record(Stage.TOKEN_VALIDATION, start);
+		if (valid) {
+			tokenCache.put(tokenId, cacheExpirationFor(token));
+			addTokenListener(token, tokenId);
+		} else {
+			tokenCache.remove(tokenId);
+			listenedTokens.remove(tokenId);
+		}
+		return valid;
+	}
+
+	/**
+	 * Asks OpenSSO whether the session is still valid
+	 */
+	protected boolean validateRemotely(SSOToken token) {
+		return tokenManager.isValidToken(token);
+	}
+
+	/**
+	 * The cache entry never outlives the session: it expires at the configured
+	 * TTL or at the session max/idle timeout, whichever comes first
+	 */
+	protected long cacheExpirationFor(SSOToken token) {
+		long now = System.currentTimeMillis();
+		try {
+			long timeLeft = token.getTimeLeft() * 1000;
+			long idleLeft = (token.getMaxIdleTime() * 60 - token.getIdleTime()) * 1000;
+			return now + Math.min(tokenCacheTTL, Math.min(timeLeft, idleLeft));
+		} catch (SSOException e) {
+			logger.info("Unable to read session timeouts, token will not be cached");
+			return now;
+		}
+	}
+
+	/**
+	 * Subscribes to the session events of a freshly cached token, so that a
+	 * logout or timeout notified by OpenSSO evicts it. The SDK appends every
+	 * registration to the session listeners, so each token ID is subscribed
+	 * once, until the session ends; re-validations after a cache expiration
+	 * reuse the subscription. Past the limit, tokens are only evicted at
+	 * expiration.
+	 */
+	private void addTokenListener(SSOToken token, String tokenId) {
+		if (listenedTokens.size() >= MAX_LISTENED_TOKENS || listenedTokens.putIfAbsent(tokenId, Boolean.TRUE) != null) {
+			return;
+		}
+		try {
+			token.addSSOTokenListener(tokenListener);
+		} catch (SSOException e) {
+			listenedTokens.remove(tokenId);
+			logger.debug("Unable to listen to session events, token will be evicted at expiration");
+		}
+	}
+
+	/**
+	 * Evicts the token from the validation cache, so that the next request
+	 * carrying it is validated against OpenSSO again
+	 * 
+	 * @param tokenId
+	 */
+	public void invalidateToken(String tokenId) {
+		if (tokenId != null) {
+			tokenCache.remove(tokenId);
+			AuthenticationMetrics.count(Counter.TOKEN_INVALIDATIONS);
+		}
+	}
+
+	/**
+	 * Evicts the token and invalidates the HTTP sessions authenticated with
+	 * it, once OpenSSO reported it destroyed or timed out, on this node and
+	 * on the other ones
+	 * 
+	 * @param tokenId
+	 */
+	public void revokeToken(String tokenId) {
+		invalidateToken(tokenId);
+		if (tokenId != null) {
+			listenedTokens.remove(tokenId);
+			SessionRegistry.getInstance().invalidateToken(tokenId);
+			invalidationBus.publish(Region.TOKEN, tokenId);
+		}
+	}
+
+	/**
+	 * Forgets the attributes and groups read for the principal, on this node
+	 * and on the other ones
+	 * 
+	 * @param principal
+	 */
+	public void invalidateIdentity(String principal) {
+		if (principal != null) {
+			identityCache.remove(principal);
+			invalidationBus.publish(Region.IDENTITY, principal);
+		}
+	}
+
+	/**
+	 * Applies the evictions published by other nodes
+	 */
+	private class ClusterInvalidationListener implements InvalidationListener {
+		public void invalidated(Region region, String key) {
+			switch (region) {
+			case TOKEN:
+				invalidateToken(key);
+				listenedTokens.remove(key);
+				SessionRegistry.getInstance().invalidateToken(key);
+				break;
+			case IDENTITY:
+			case PRINCIPAL:
+				identityCache.remove(key);
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Evicts cached tokens on any session event: a logout, a timeout or a
+	 * property change all require a fresh validation. Sessions of tokens no
+	 * longer valid are revoked as well.
+	 */
+	private class TokenInvalidationListener implements SSOTokenListener {
+		public void ssoTokenChanged(SSOTokenEvent event) {
+			SSOToken token = event.getToken();
+			if (token == null) {
+				return;
+			}
+			String tokenId = getTokenId(token);
+			try {
+				if (event.getType() == SSOTokenEvent.SSO_TOKEN_PROPERTY_CHANGED) {
+					invalidateToken(tokenId);
+					return;
+				}
+			} catch (SSOException e) {
+				logger.debug("Unknown session event type for " + tokenId);
+			}
+			revokeToken(tokenId);
+		}
+	}
+
+	public TokenCache getTokenCache() {
+		return tokenCache;
+	}
+
+	public void setTokenCache(TokenCache tokenCache) {
+		this.tokenCache = tokenCache;
+		AuthenticationMetrics.getInstance().registerCache("token", tokenCache);
+	}
+
+	public FrequencyCache<String, OpenSSOIdentity> getIdentityCache() {
+		return identityCache;
 	}
 	
 	public SSOToken tokenFromString(String ticket)  {
@@ -136,11 +552,61 @@ public class OpenSSOClient {
 		return groups;
 	}
 
+	/**
+	 * @param token
+	 * @return group names of the token's principal, or null if it has none
+	 */
 	public List<String> getGroups(SSOToken token) {
-		try {
-			Set<String> cngroups = IdUtils.getIdentity(token).getAttribute(ATTR_GROUPS);
-			return extractGroupNameFromFQGroup(cngroups);
+		List<String> groups = getIdentity(token).getGroups();
+		return groups.isEmpty() ? null : groups;
+	}
+
+	/**
+	 * Reads the principal, the mapped attributes and the group membership.
+	 * Snapshots are cached per principal, so only a cache miss costs a
+	 * single call to the identity repository.
+	 * 
+	 * @param token
+	 * @return the identity snapshot, without attributes if they could not be
+	 *         read
+	 */
+	public OpenSSOIdentity getIdentity(SSOToken token) {
+		String principal = getPrincipal(token);
+		if (principal == null) {
+			return new OpenSSOIdentity(null, null, null);
+		}
+		OpenSSOIdentity identity = identityCache.get(principal);
+		if (identity == null) {
+			long start = System.nanoTime();
+			identity = fetchIdentity(token, principal);
+			AuthenticationMetrics.record(Stage.ATTRIBUTE_FETCH, start);
+			if (identity != null) {
+				identityCache.put(principal, identity);
+			} else {
+				identity = new OpenSSOIdentity(principal, null, null);
+			}
+		}
+		return identity;
+	}
 
+	private OpenSSOIdentity fetchIdentity(SSOToken token, String principal) {
+		HashMap<String, String> attributes = new HashMap<String, String>();
+		List<String> groups = null;
+		try {
+			Map<String, Set<String>> values = (Map<String, Set<String>>) IdUtils.getIdentity(token).getAttributes(IDENTITY_ATTRIBUTES);
+			for (Map.Entry<String, Set<String>> entry : values.entrySet()) {
+				Set<String> attributeValues = entry.getValue();
+				if (attributeValues == null || attributeValues.isEmpty()) {
+					continue;
+				}
+				if (ATTR_GROUPS.equalsIgnoreCase(entry.getKey())) {
+					groups = extractGroupNameFromFQGroup(attributeValues);
+				} else {
+					Iterator<String> iterator = attributeValues.iterator();
+					attributes.put(entry.getKey().toLowerCase(), iterator.next());
+				}
+			}
+			return new OpenSSOIdentity(principal, attributes, groups);
 		} catch (SSOException e) {
 			e.printStackTrace();
 		} catch (IdRepoException e) {
@@ -150,6 +616,9 @@ public class OpenSSOClient {
 	}
 
 	public String getUserAttribute(String attribute, SSOToken token) {
+		if (IDENTITY_ATTRIBUTES.contains(attribute) && !ATTR_GROUPS.equals(attribute)) {
+			return getIdentity(token).getAttribute(attribute);
+		}
 		String attributeValue = null;
 		try {
 			Set<String> attributeValues = (Set<String>) IdUtils.getIdentity(token).getAttribute(attribute);
@@ -164,6 +633,10 @@ public class OpenSSOClient {
 		return attributeValue;
 	}
 
+	public String getTokenId(SSOToken token) {
+		return token.getTokenID().toString();
+	}
+
 	public String getPrincipal(SSOToken token) {
 		String principal = null;
 		try {
@@ -180,5 +653,8 @@ public class OpenSSOClient {
 		} catch (SSOException e) {
 			e.printStackTrace();
 		}
+		if (token != null) {
+			revokeToken(getTokenId(token));
+		}
 	}
 }
@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.opensso;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of an OpenSSO identity: principal, user attributes and
+ * group names, as read in a single call to the identity repository
+ * 
+ * @author g.fernandes@sourcesense.com
+ * 
+ */
+public class OpenSSOIdentity implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String principal;
+	private final Map<String, String> attributes;
+	private final List<String> groups;
+
+	public OpenSSOIdentity(String principal, Map<String, String> attributes, List<String> groups) {
+		this.principal = principal;
+		this.attributes = Collections.unmodifiableMap(attributes == null ? new HashMap<String, String>() : new HashMap<String, String>(attributes));
+		this.groups = Collections.unmodifiableList(groups == null ? new ArrayList<String>() : new ArrayList<String>(groups));
+	}
+
+	public String getPrincipal() {
+		return principal;
+	}
+
+	/**
+	 * @param name
+	 * @return first value of the attribute, or null if not present
+	 */
+	public String getAttribute(String name) {
+		return attributes.get(name);
+	}
+
+	public Map<String, String> getAttributes() {
+		return attributes;
+	}
+
+	public List<String> getGroups() {
+		return groups;
+	}
+
+	@Override
+	public String toString() {
+		return "OpenSSOIdentity[" + principal + ", groups=" + groups + "]";
+	}
+}
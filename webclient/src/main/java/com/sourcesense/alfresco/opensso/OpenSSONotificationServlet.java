@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.opensso;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Receiver of OpenSSO session notifications: every session mentioned in a
+ * notification set is evicted from the token cache, so that logouts and
+ * timeouts happening elsewhere are seen by the next request. HTTP sessions
+ * authenticated with a session no longer valid are invalidated at once. Point
+ * <code>com.iplanet.am.notification.url</code> to this servlet to use it
+ * instead of the SDK's own notification servlet.
+ * <p>
+ * Evicting only forces a new validation, so the payload is not parsed beyond
+ * the session IDs. Senders are restricted to the OpenSSO servers listed in
+ * the allowedAddresses init-param; without it every notification is
+ * rejected.
+ * 
+ * @author g.fernandes@sourcesense.com
+ * 
+ */
+public class OpenSSONotificationServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	private static Log logger = LogFactory.getLog(OpenSSONotificationServlet.class);
+
+	public static final String PARAM_ALLOWED_ADDRESSES = "allowedAddresses";
+
+	private static final int MAX_BODY = 1024 * 1024;
+	private static final String VALID = "valid";
+	private static final Pattern SESSION = Pattern.compile("<Session\\s([^>]*)>");
+	private static final Pattern SESSION_ID = Pattern.compile("\\bsid=\"([^\"]+)\"");
+	private static final Pattern SESSION_STATE = Pattern.compile("\\bstate=\"([^\"]*)\"");
+
+	private Set<String> allowedAddresses = new HashSet<String>();
+	private OpenSSOClient openSSOClient;
+
+	@Override
+	public void init() throws ServletException {
+		String addresses = getInitParameter(PARAM_ALLOWED_ADDRESSES);
+		if (addresses != null && addresses.trim().length() > 0) {
+			allowedAddresses = new HashSet<String>(Arrays.asList(addresses.trim().split("[\\s,]+")));
+		} else {
+			logger.error("No " + PARAM_ALLOWED_ADDRESSES + " configured, all session notifications will be rejected");
+		}
+	}
+
+	@Override
+	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		if (!allowedAddresses.contains(request.getRemoteAddr())) {
+			logger.warn("Rejected session notification from " + request.getRemoteAddr());
+			response.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+		Map<String, String> sessions = extractSessions(readBody(request));
+		for (Map.Entry<String, String> session : sessions.entrySet()) {
+			if (VALID.equals(session.getValue())) {
+				getOpenSSOClient().invalidateToken(session.getKey());
+			} else {
+				getOpenSSOClient().revokeToken(session.getKey());
+			}
+		}
+		if (logger.isDebugEnabled()) {
+			logger.debug("Evicted " + sessions.size() + " notified sessions");
+		}
+		response.setStatus(HttpServletResponse.SC_OK);
+	}
+
+	private CharSequence readBody(HttpServletRequest request) throws IOException {
+		StringBuilder body = new StringBuilder();
+		Reader reader = request.getReader();
+		char[] buffer = new char[4096];
+		int read;
+		while ((read = reader.read(buffer)) != -1 && body.length() < MAX_BODY) {
+			body.append(buffer, 0, read);
+		}
+		return body;
+	}
+
+	/**
+	 * @param notification
+	 *            notification set, with session notifications either in CDATA
+	 *            sections or escaped
+	 * @return state of the notified sessions, by session ID
+	 */
+	static Map<String, String> extractSessions(CharSequence notification) {
+		String text = notification.toString();
+		if (text.indexOf("&lt;") >= 0) {
+			text = text.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&amp;", "&");
+		}
+		Map<String, String> sessions = new LinkedHashMap<String, String>();
+		Matcher matcher = SESSION.matcher(text);
+		while (matcher.find()) {
+			String attributes = matcher.group(1);
+			Matcher sid = SESSION_ID.matcher(attributes);
+			if (sid.find()) {
+				Matcher state = SESSION_STATE.matcher(attributes);
+				sessions.put(sid.group(1), state.find() ? state.group(1) : null);
+			}
+		}
+		return sessions;
+	}
+
+	public OpenSSOClient getOpenSSOClient() {
+		if (openSSOClient == null) {
+			openSSOClient = OpenSSOClient.instance();
+		}
+		return openSSOClient;
+	}
+
+	public void setOpenSSOClient(OpenSSOClient openSSOClient) {
+		this.openSSOClient = openSSOClient;
+	}
+}
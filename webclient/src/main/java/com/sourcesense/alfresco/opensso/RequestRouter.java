@@ -0,0 +1,309 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.opensso;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.LinkedList;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Classifies requests by path, so that the SSO filters know upfront how much
+ * of the authentication pipeline a request needs. Patterns follow the servlet
+ * mapping syntax: exact paths, prefixes such as <code>/css/*</code> and
+ * suffixes such as <code>*.png</code>, plus suffixes scoped to a prefix such
+ * as <code>/images/*.png</code>. An exact match wins over the longest prefix,
+ * which wins over the longest scoped suffix, which wins over the longest
+ * suffix. Bypassing by scoped suffix keeps an extension from exempting
+ * content served under other paths, such as downloads.
+ * 
+ * @author g.fernandes@sourcesense.com
+ * 
+ */
+public class RequestRouter {
+
+	public enum Route {
+		/** served without any SSO processing */
+		BYPASS,
+		/** authenticated if a token is present, guest otherwise */
+		GUEST,
+		/** requires an OpenSSO token, redirecting to the login page */
+		AUTHENTICATE
+	}
+
+	public static final String PARAM_BYPASS_PATTERNS = "bypassPatterns";
+	public static final String PARAM_GUEST_PATTERNS = "guestPatterns";
+	public static final String PARAM_AUTHENTICATE_PATTERNS = "authenticatePatterns";
+	public static final String PARAM_DEFAULT_ROUTE = "defaultRoute";
+
+	private final Node prefixes = new Node();
+	private final Node suffixes = new Node();
+	private final Route defaultRoute;
+
+	public RequestRouter(Route defaultRoute) {
+		this.defaultRoute = defaultRoute;
+	}
+
+	/**
+	 * Builds a router from the filter init-params
+	 * 
+	 * @param config
+	 * @param defaultRoute
+	 *            route of unmatched requests unless the defaultRoute
+	 *            init-param says otherwise
+	 */
+	public static RequestRouter fromConfig(FilterConfig config, Route defaultRoute) {
+		String configuredDefault = config.getInitParameter(PARAM_DEFAULT_ROUTE);
+		if (configuredDefault != null && configuredDefault.trim().length() > 0) {
+			defaultRoute = Route.valueOf(configuredDefault.trim().toUpperCase());
+		}
+		RequestRouter router = new RequestRouter(defaultRoute);
+		router.addPatterns(config.getInitParameter(PARAM_BYPASS_PATTERNS), Route.BYPASS);
+		router.addPatterns(config.getInitParameter(PARAM_GUEST_PATTERNS), Route.GUEST);
+		router.addPatterns(config.getInitParameter(PARAM_AUTHENTICATE_PATTERNS), Route.AUTHENTICATE);
+		return router;
+	}
+
+	/**
+	 * Registers patterns separated by commas or whitespace. Not thread-safe,
+	 * to be called while the filter is initialized.
+	 * 
+	 * @param patterns
+	 * @param route
+	 */
+	public void addPatterns(String patterns, Route route) {
+		if (patterns == null) {
+			return;
+		}
+		for (String pattern : patterns.split("[,\\s]+")) {
+			if (pattern.length() > 0) {
+				addPattern(pattern, route);
+			}
+		}
+	}
+
+	public void addPattern(String pattern, Route route) {
+		int scope = pattern.indexOf("/*.");
+		if (pattern.startsWith("*.")) {
+			addSuffix(suffixes, pattern, 0, route);
+		} else if (scope > 0) {
+			Node node = prefixes.walk(pattern, scope).child('/');
+			if (node.suffixes == null) {
+				node.suffixes = new Node();
+			}
+			addSuffix(node.suffixes, pattern, scope + 1, route);
+		} else if (pattern.endsWith("/*")) {
+			Node node = prefixes.walk(pattern, pattern.length() - 2);
+			node.exactRoute = route;
+			node.child('/').prefixRoute = route;
+		} else {
+			prefixes.walk(pattern, pattern.length()).exactRoute = route;
+		}
+	}
+
+	private static void addSuffix(Node root, String pattern, int star, Route route) {
+		Node node = root;
+		for (int i = pattern.length() - 1; i > star; i--) {
+			node = node.child(pattern.charAt(i));
+		}
+		node.prefixRoute = route;
+	}
+
+	/**
+	 * Routes the servlet path and path info, as decoded by the container,
+	 * once dot segments, percent escapes, path parameters and repeated slashes
+	 * are resolved. A request is only bypassed when both the path as given
+	 * and its normalized form are, so that neither <code>..</code> nor
+	 * <code>%2e</code> segments can lift a protected path into a bypassed one.
+	 * 
+	 * @param request
+	 * @return route of the request path within the context
+	 */
+	public Route route(HttpServletRequest request) {
+		String path = request.getServletPath();
+		String pathInfo = request.getPathInfo();
+		if (path == null) {
+			path = pathInfo == null ? "" : pathInfo;
+		} else if (pathInfo != null) {
+			path = path.concat(pathInfo);
+		}
+		String normalized = normalize(path);
+		Route route = route(normalized);
+		if (route == Route.BYPASS && normalized != path) {
+			Route given = route(path);
+			if (given != Route.BYPASS) {
+				return given;
+			}
+		}
+		return route;
+	}
+
+	/**
+	 * @param path
+	 * @return the path with percent escapes decoded, path parameters dropped,
+	 *         repeated slashes collapsed and dot segments resolved; the same
+	 *         instance when there is nothing to resolve
+	 */
+	static String normalize(String path) {
+		if (path.indexOf('%') < 0 && path.indexOf(';') < 0 && path.indexOf("//") < 0 && path.indexOf("/.") < 0
+				&& path.indexOf('\\') < 0) {
+			return path;
+		}
+		String decoded = decode(path);
+		LinkedList<String> segments = new LinkedList<String>();
+		for (String segment : decoded.replace('\\', '/').split("/")) {
+			int parameters = segment.indexOf(';');
+			if (parameters >= 0) {
+				segment = segment.substring(0, parameters);
+			}
+			if (segment.length() == 0 || segment.equals(".")) {
+				continue;
+			}
+			if (segment.equals("..")) {
+				if (!segments.isEmpty()) {
+					segments.removeLast();
+				}
+			} else {
+				segments.add(segment);
+			}
+		}
+		StringBuilder normalized = new StringBuilder(decoded.length());
+		for (String segment : segments) {
+			normalized.append('/').append(segment);
+		}
+		if (segments.isEmpty() || decoded.endsWith("/")) {
+			normalized.append('/');
+		}
+		return normalized.toString();
+	}
+
+	private static String decode(String path) {
+		if (path.indexOf('%') < 0) {
+			return path;
+		}
+		try {
+			return URLDecoder.decode(path.replace("+", "%2B"), "UTF-8");
+		} catch (IllegalArgumentException e) {
+			// malformed escapes are routed as given
+			return path;
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public Route route(String path) {
+		return route(path, 0, path.length());
+	}
+
+	private Route route(String path, int start, int end) {
+		Route match = null;
+		Node scoped = null;
+		Node node = prefixes;
+		for (int i = start; i < end && node != null; i++) {
+			if (node.prefixRoute != null) {
+				match = node.prefixRoute;
+			}
+			if (node.suffixes != null) {
+				scoped = node.suffixes;
+			}
+			node = node.find(path.charAt(i));
+		}
+		if (node != null) {
+			if (node.exactRoute != null) {
+				return node.exactRoute;
+			}
+			if (node.prefixRoute != null) {
+				match = node.prefixRoute;
+			}
+		}
+		if (match != null) {
+			return match;
+		}
+		if (scoped != null && (match = suffixRoute(scoped, path, start, end)) != null) {
+			return match;
+		}
+		match = suffixRoute(suffixes, path, start, end);
+		return match != null ? match : defaultRoute;
+	}
+
+	private static Route suffixRoute(Node root, String path, int start, int end) {
+		Route match = null;
+		Node node = root;
+		for (int i = end - 1; i >= start && node != null; i--) {
+			if (node.prefixRoute != null) {
+				match = node.prefixRoute;
+			}
+			node = node.find(path.charAt(i));
+		}
+		if (node != null && node.prefixRoute != null) {
+			match = node.prefixRoute;
+		}
+		return match;
+	}
+
+	public Route getDefaultRoute() {
+		return defaultRoute;
+	}
+
+	/**
+	 * Trie node with a small, linearly scanned, set of children
+	 */
+	private static final class Node {
+
+		private char[] keys = new char[0];
+		private Node[] children = new Node[0];
+		private Route exactRoute;
+		private Route prefixRoute;
+		/** suffixes scoped to the path leading to this node */
+		private Node suffixes;
+
+		Node find(char key) {
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] == key) {
+					return children[i];
+				}
+			}
+			return null;
+		}
+
+		Node child(char key) {
+			Node child = find(key);
+			if (child == null) {
+				child = new Node();
+				char[] newKeys = new char[keys.length + 1];
+				Node[] newChildren = new Node[children.length + 1];
+				System.arraycopy(keys, 0, newKeys, 0, keys.length);
+				System.arraycopy(children, 0, newChildren, 0, children.length);
+				newKeys[keys.length] = key;
+				newChildren[children.length] = child;
+				keys = newKeys;
+				children = newChildren;
+			}
+			return child;
+		}
+
+		Node walk(String path, int length) {
+			Node node = this;
+			for (int i = 0; i < length; i++) {
+				node = node.child(path.charAt(i));
+			}
+			return node;
+		}
+	}
+}
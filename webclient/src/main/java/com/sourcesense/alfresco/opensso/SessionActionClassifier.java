@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.opensso;
+
+import java.util.Enumeration;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Detects login and logout requests without forcing the container to parse
+ * the request body: only the query string and, for url-encoded form posts,
+ * the JSF action parameters (<code>form:act</code>) are looked at. Multipart
+ * uploads are never read.
+ * 
+ * @author g.fernandes@sourcesense.com
+ * 
+ */
+public final class SessionActionClassifier {
+
+	public enum Action {
+		NONE, LOGIN, LOGOUT
+	}
+
+	private static final String JSF_ACTION_SUFFIX = ":act";
+	private static final String FORM_URLENCODED = "application/x-www-form-urlencoded";
+	private static final String LOGIN = "login";
+	private static final String LOGOUT = "logout";
+
+	private SessionActionClassifier() {
+	}
+
+	public static Action classify(HttpServletRequest request) {
+		Action action = actionIn(request.getQueryString());
+		if (action != Action.NONE || !isFormPost(request)) {
+			return action;
+		}
+		Enumeration parameterNames = request.getParameterNames();
+		while (parameterNames.hasMoreElements()) {
+			String parameter = (String) parameterNames.nextElement();
+			if (parameter.endsWith(JSF_ACTION_SUFFIX)) {
+				action = actionIn(request.getParameter(parameter));
+				if (action != Action.NONE) {
+					return action;
+				}
+			}
+		}
+		return Action.NONE;
+	}
+
+	private static boolean isFormPost(HttpServletRequest request) {
+		String contentType = request.getContentType();
+		return "POST".equalsIgnoreCase(request.getMethod()) && contentType != null
+				&& contentType.regionMatches(true, 0, FORM_URLENCODED, 0, FORM_URLENCODED.length());
+	}
+
+	/**
+	 * @param value
+	 *            raw or url-encoded text
+	 * @return the action named after a colon, such as <code>browse:logout</code>
+	 *         or <code>browse%3Alogout</code>
+	 */
+	static Action actionIn(String value) {
+		if (value == null) {
+			return Action.NONE;
+		}
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			int next;
+			if (c == ':') {
+				next = i + 1;
+			} else if (c == '%' && i + 2 < length && value.charAt(i + 1) == '3' && (value.charAt(i + 2) == 'A' || value.charAt(i + 2) == 'a')) {
+				next = i + 3;
+			} else {
+				continue;
+			}
+			if (value.startsWith(LOGOUT, next)) {
+				return Action.LOGOUT;
+			}
+			if (value.startsWith(LOGIN, next)) {
+				return Action.LOGIN;
+			}
+		}
+		return Action.NONE;
+	}
+}
@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.opensso;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.http.HttpSession;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.sourcesense.alfresco.monitor.AuthenticationMetrics;
+import com.sourcesense.alfresco.monitor.AuthenticationMetrics.Counter;
+
+/**
+ * Reverse index of the live HTTP sessions by principal and by OpenSSO token
+ * ID, so that a revocation invalidates exactly the sessions it concerns.
+ * Sessions are only weakly referenced: the index never keeps alive a session
+ * the container has dropped. It is kept current by
+ * {@link SessionRegistryListener}.
+ * 
+ * @author g.fernandes@sourcesense.com
+ * 
+ */
+public class SessionRegistry {
+
+	private static Log logger = LogFactory.getLog(SessionRegistry.class);
+
+	private static final SessionRegistry INSTANCE = new SessionRegistry();
+
+	private final ReferenceQueue<HttpSession> collected = new ReferenceQueue<HttpSession>();
+	private final Index byPrincipal = new Index();
+	private final Index byToken = new Index();
+
+	SessionRegistry() {
+	}
+
+	public static SessionRegistry getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Indexes the session under the given principal and token, replacing the
+	 * keys it was previously indexed with
+	 * 
+	 * @param principal
+	 *            user of the session, or null if not authenticated
+	 * @param tokenId
+	 *            OpenSSO token the session was authenticated with, or null
+	 */
+	public void register(HttpSession session, String principal, String tokenId) {
+		expungeCollected();
+		SessionReference reference = new SessionReference(session, collected);
+		byPrincipal.put(principal, reference);
+		byToken.put(tokenId, reference);
+	}
+
+	public void unregister(HttpSession session) {
+		String sessionId = session.getId();
+		byPrincipal.remove(sessionId);
+		byToken.remove(sessionId);
+		expungeCollected();
+	}
+
+	/**
+	 * Invalidates the sessions of a user, e.g. deleted or disabled
+	 * 
+	 * @return number of sessions invalidated
+	 */
+	public int invalidatePrincipal(String principal) {
+		return invalidate(byPrincipal.sessionsOf(principal));
+	}
+
+	/**
+	 * Invalidates the sessions authenticated with an OpenSSO token that was
+	 * destroyed or timed out
+	 * 
+	 * @return number of sessions invalidated
+	 */
+	public int invalidateToken(String tokenId) {
+		return invalidate(byToken.sessionsOf(tokenId));
+	}
+
+	public int getSessionCount(String principal) {
+		return byPrincipal.sessionsOf(principal).size();
+	}
+
+	private int invalidate(List<SessionReference> references) {
+		int invalidated = 0;
+		for (SessionReference reference : references) {
+			HttpSession session = reference.get();
+			if (session == null) {
+				continue;
+			}
+			try {
+				session.invalidate();
+				invalidated++;
+			} catch (IllegalStateException e) {
+				logger.debug("Session " + reference.sessionId + " already invalidated");
+			}
+			byPrincipal.remove(reference.sessionId);
+			byToken.remove(reference.sessionId);
+		}
+		if (invalidated > 0) {
+			AuthenticationMetrics.count(Counter.REVOKED_SESSIONS, invalidated);
+		}
+		return invalidated;
+	}
+
+	private void expungeCollected() {
+		SessionReference reference;
+		while ((reference = (SessionReference) collected.poll()) != null) {
+			byPrincipal.remove(reference.sessionId, reference);
+			byToken.remove(reference.sessionId, reference);
+		}
+	}
+
+	private static final class SessionReference extends WeakReference<HttpSession> {
+		final String sessionId;
+
+		SessionReference(HttpSession session, ReferenceQueue<HttpSession> queue) {
+			super(session, queue);
+			this.sessionId = session.getId();
+		}
+	}
+
+	/**
+	 * Key to sessions map, with the reverse session to key map needed to
+	 * re-index or drop a session without knowing its key
+	 */
+	private static final class Index {
+		private final ConcurrentMap<String, ConcurrentMap<String, SessionReference>> sessions = new ConcurrentHashMap<String, ConcurrentMap<String, SessionReference>>();
+		private final ConcurrentMap<String, String> keys = new ConcurrentHashMap<String, String>();
+
+		void put(String key, SessionReference reference) {
+			if (key == null) {
+				remove(reference.sessionId);
+				return;
+			}
+			String previous = keys.put(reference.sessionId, key);
+			if (previous != null && !previous.equals(key)) {
+				removeFrom(previous, reference.sessionId, null);
+			}
+			while (true) {
+				ConcurrentMap<String, SessionReference> keySessions = sessions.get(key);
+				if (keySessions == null) {
+					keySessions = new ConcurrentHashMap<String, SessionReference>(4);
+					ConcurrentMap<String, SessionReference> existing = sessions.putIfAbsent(key, keySessions);
+					if (existing != null) {
+						keySessions = existing;
+					}
+				}
+				keySessions.put(reference.sessionId, reference);
+				// an emptied map may have been dropped concurrently
+				if (sessions.get(key) == keySessions) {
+					return;
+				}
+			}
+		}
+
+		void remove(String sessionId) {
+			String key = keys.remove(sessionId);
+			if (key != null) {
+				removeFrom(key, sessionId, null);
+			}
+		}
+
+		void remove(String sessionId, SessionReference reference) {
+			String key = keys.get(sessionId);
+			if (key != null && removeFrom(key, sessionId, reference)) {
+				keys.remove(sessionId, key);
+			}
+		}
+
+		private boolean removeFrom(String key, String sessionId, SessionReference reference) {
+			ConcurrentMap<String, SessionReference> keySessions = sessions.get(key);
+			if (keySessions == null) {
+				return false;
+			}
+			boolean removed = reference == null ? keySessions.remove(sessionId) != null : keySessions.remove(sessionId, reference);
+			if (keySessions.isEmpty()) {
+				sessions.remove(key, keySessions);
+			}
+			return removed;
+		}
+
+		List<SessionReference> sessionsOf(String key) {
+			ConcurrentMap<String, SessionReference> keySessions = key == null ? null : sessions.get(key);
+			if (keySessions == null) {
+				return new ArrayList<SessionReference>(0);
+			}
+			return new ArrayList<SessionReference>(keySessions.values());
+		}
+	}
+}
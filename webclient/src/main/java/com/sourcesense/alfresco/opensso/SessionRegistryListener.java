@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.opensso;
+
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionAttributeListener;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionEvent;
+import javax.servlet.http.HttpSessionListener;
+
+import org.alfresco.service.cmr.security.PermissionService;
+import org.alfresco.web.app.servlet.AuthenticationHelper;
+import org.alfresco.web.bean.repository.User;
+
+/**
+ * Keeps the {@link SessionRegistry} current with the user and the OpenSSO
+ * token of each session. Guest sessions are not indexed.
+ * 
+ * @author g.fernandes@sourcesense.com
+ * 
+ */
+public class SessionRegistryListener implements HttpSessionListener, HttpSessionAttributeListener {
+
+	public void sessionCreated(HttpSessionEvent event) {
+	}
+
+	public void sessionDestroyed(HttpSessionEvent event) {
+		SessionRegistry.getInstance().unregister(event.getSession());
+	}
+
+	public void attributeAdded(HttpSessionBindingEvent event) {
+		update(event);
+	}
+
+	public void attributeRemoved(HttpSessionBindingEvent event) {
+		update(event);
+	}
+
+	public void attributeReplaced(HttpSessionBindingEvent event) {
+		update(event);
+	}
+
+	private void update(HttpSessionBindingEvent event) {
+		String name = event.getName();
+		if (!AuthenticationHelper.AUTHENTICATION_USER.equals(name) && !AlfrescoOpenSSOFilter.OPENSSO_TOKEN_ID.equals(name)) {
+			return;
+		}
+		HttpSession session = event.getSession();
+		String principal = null;
+		Object user;
+		Object tokenId;
+		try {
+			user = session.getAttribute(AuthenticationHelper.AUTHENTICATION_USER);
+			tokenId = session.getAttribute(AlfrescoOpenSSOFilter.OPENSSO_TOKEN_ID);
+		} catch (IllegalStateException e) {
+			// attributes are unbound after the session is invalidated
+			SessionRegistry.getInstance().unregister(session);
+			return;
+		}
+		if (user instanceof User) {
+			principal = ((User) user).getUserName();
+		}
+		if (PermissionService.GUEST_AUTHORITY.equals(principal) || (principal == null && tokenId == null)) {
+			SessionRegistry.getInstance().unregister(session);
+		} else {
+			SessionRegistry.getInstance().register(session, principal, (String) tokenId);
+		}
+	}
+}
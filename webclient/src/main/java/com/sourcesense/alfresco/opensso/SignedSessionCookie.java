@@ -0,0 +1,281 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.opensso;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.FilterConfig;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Short-lived cookie, signed with HMAC-SHA256, stating that the OpenSSO
+ * session of a principal was validated remotely until a given time. While it
+ * is fresh, requests are authenticated by checking the signature only.
+ * <p>
+ * The value is <code>hex(principal).hex(expiry).hex(mac)</code>, where the
+ * MAC also covers the SHA-256 hash of the OpenSSO session cookie: the signed
+ * cookie is worthless next to any other OpenSSO session.
+ * <p>
+ * Nodes verifying each other's cookies must share the same key; without one a
+ * random key is generated, valid only on this node and until restart.
+ * 
+ * @author g.fernandes@sourcesense.com
+ * 
+ */
+public class SignedSessionCookie {
+
+	private static Log logger = LogFactory.getLog(SignedSessionCookie.class);
+
+	public static final String PARAM_ENABLED = "signedCookie";
+	public static final String PARAM_KEY = "signedCookieKey";
+	public static final String PARAM_TTL = "signedCookieTTL";
+	public static final String PARAM_NAME = "signedCookieName";
+
+	public static final String DEFAULT_NAME = "_alfOpenSSOSig";
+	private static final long DEFAULT_TTL = 60;
+	private static final String ALGORITHM = "HmacSHA256";
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final String name;
+	private final long ttl;
+	private final ThreadLocal<Mac> macs;
+
+	/**
+	 * @param key
+	 *            secret shared by the nodes
+	 * @param name
+	 *            cookie name
+	 * @param ttl
+	 *            milliseconds a signature stays valid
+	 */
+	public SignedSessionCookie(final byte[] key, String name, long ttl) {
+		if (key == null || key.length < 16) {
+			throw new IllegalArgumentException("Signing key must be at least 16 bytes long");
+		}
+		this.name = name;
+		this.ttl = ttl;
+		final SecretKeySpec keySpec = new SecretKeySpec(key, ALGORITHM);
+		this.macs = new ThreadLocal<Mac>() {
+			@Override
+			protected Mac initialValue() {
+				try {
+					Mac mac = Mac.getInstance(ALGORITHM);
+					mac.init(keySpec);
+					return mac;
+				} catch (GeneralSecurityException e) {
+					throw new IllegalStateException(ALGORITHM + " not available", e);
+				}
+			}
+		};
+		macs.get();
+	}
+
+	/**
+	 * Reads the signedCookie, signedCookieKey, signedCookieTTL (seconds) and
+	 * signedCookieName init-params
+	 * 
+	 * @return the configured cookie, or null if the mode is not enabled
+	 */
+	public static SignedSessionCookie fromConfig(FilterConfig config) {
+		if (!Boolean.parseBoolean(config.getInitParameter(PARAM_ENABLED))) {
+			return null;
+		}
+		byte[] key;
+		String secret = config.getInitParameter(PARAM_KEY);
+		if (secret == null || secret.trim().length() == 0) {
+			logger.warn("No " + PARAM_KEY + " configured, signed cookies will only be valid on this node");
+			key = new byte[32];
+			new SecureRandom().nextBytes(key);
+		} else {
+			key = utf8(secret.trim());
+		}
+		String name = config.getInitParameter(PARAM_NAME);
+		if (name == null || name.trim().length() == 0) {
+			name = DEFAULT_NAME;
+		}
+		long ttl = AlfrescoOpenSSOFilter.getIntParameter(config, PARAM_TTL, (int) DEFAULT_TTL) * 1000L;
+		return new SignedSessionCookie(key, name.trim(), ttl);
+	}
+
+	public long getTTL() {
+		return ttl;
+	}
+
+	/**
+	 * @param request
+	 * @param sessionCookie
+	 *            value of the OpenSSO session cookie of the request
+	 * @return the principal if the request carries a fresh cookie signed for
+	 *         this OpenSSO session, null otherwise
+	 */
+	public String verify(HttpServletRequest request, String sessionCookie) {
+		if (sessionCookie == null) {
+			return null;
+		}
+		Cookie[] cookies = request.getCookies();
+		if (cookies == null) {
+			return null;
+		}
+		for (int i = 0; i < cookies.length; i++) {
+			if (name.equals(cookies[i].getName())) {
+				return decode(cookies[i].getValue(), sessionCookie, System.currentTimeMillis());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Signs the principal and the OpenSSO session cookie just validated
+	 * remotely
+	 * 
+	 * @param expiresAt
+	 *            upper bound of the signature validity, it is shortened to
+	 *            the configured TTL
+	 */
+	public void issue(HttpServletRequest request, HttpServletResponse response, String principal, String sessionCookie, long expiresAt) {
+		long now = System.currentTimeMillis();
+		long expiry = Math.min(expiresAt, now + ttl);
+		if (principal == null || sessionCookie == null || expiry <= now) {
+			return;
+		}
+		response.addCookie(newCookie(request, encode(principal, sessionCookie, expiry), -1));
+	}
+
+	/**
+	 * Expires the cookie on the browser, if the request carries it
+	 */
+	public void clear(HttpServletRequest request, HttpServletResponse response) {
+		Cookie[] cookies = request.getCookies();
+		if (cookies == null) {
+			return;
+		}
+		for (int i = 0; i < cookies.length; i++) {
+			if (name.equals(cookies[i].getName())) {
+				response.addCookie(newCookie(request, "", 0));
+				return;
+			}
+		}
+	}
+
+	private Cookie newCookie(HttpServletRequest request, String value, int maxAge) {
+		Cookie cookie = new Cookie(name, value);
+		String path = request.getContextPath();
+		cookie.setPath(path == null || path.length() == 0 ? "/" : path);
+		cookie.setSecure(request.isSecure());
+		cookie.setMaxAge(maxAge);
+		return cookie;
+	}
+
+	String encode(String principal, String sessionCookie, long expiry) {
+		byte[] principalBytes = utf8(principal);
+		StringBuilder value = new StringBuilder();
+		value.append(toHex(principalBytes)).append('.').append(Long.toHexString(expiry)).append('.');
+		value.append(toHex(sign(principalBytes, expiry, sessionCookie)));
+		return value.toString();
+	}
+
+	String decode(String value, String sessionCookie, long now) {
+		if (value == null) {
+			return null;
+		}
+		int first = value.indexOf('.');
+		int second = value.indexOf('.', first + 1);
+		if (first < 0 || second < 0 || value.indexOf('.', second + 1) >= 0) {
+			return null;
+		}
+		byte[] principal = fromHex(value.substring(0, first));
+		byte[] mac = fromHex(value.substring(second + 1));
+		long expiry;
+		try {
+			expiry = Long.parseLong(value.substring(first + 1, second), 16);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		if (principal == null || mac == null || expiry <= now) {
+			return null;
+		}
+		if (!MessageDigest.isEqual(mac, sign(principal, expiry, sessionCookie))) {
+			logger.debug("Invalid signature in " + name + " cookie");
+			return null;
+		}
+		try {
+			return new String(principal, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private byte[] sign(byte[] principal, long expiry, String sessionCookie) {
+		byte[] sessionHash;
+		try {
+			sessionHash = MessageDigest.getInstance("SHA-256").digest(utf8(sessionCookie));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+		Mac mac = macs.get();
+		mac.update(principal);
+		mac.update((byte) 0);
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			mac.update((byte) (expiry >>> shift));
+		}
+		mac.update(sessionHash);
+		return mac.doFinal();
+	}
+
+	private static byte[] utf8(String value) {
+		try {
+			return value.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+			chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+
+	private static byte[] fromHex(String hex) {
+		if (hex.length() % 2 != 0) {
+			return null;
+		}
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			int high = Character.digit(hex.charAt(2 * i), 16);
+			int low = Character.digit(hex.charAt(2 * i + 1), 16);
+			if (high < 0 || low < 0) {
+				return null;
+			}
+			bytes[i] = (byte) ((high << 4) | low);
+		}
+		return bytes;
+	}
+}
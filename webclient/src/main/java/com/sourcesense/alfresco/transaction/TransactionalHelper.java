@@ -18,10 +18,14 @@ package com.sourcesense.alfresco.transaction;
 
 import javax.transaction.UserTransaction;
 
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
 import org.alfresco.service.transaction.TransactionService;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.sourcesense.alfresco.monitor.AuthenticationMetrics;
+import com.sourcesense.alfresco.monitor.AuthenticationMetrics.Counter;
+
 
 /**
  * Helper to execute  Alfresco method calls in a transaction
@@ -38,15 +42,59 @@ public class TransactionalHelper {
 		
 	}
 	
+	/**
+	 * How a transactional block relates to a transaction already active on
+	 * the current thread
+	 */
+	public enum Propagation {
+		/**
+		 * Join the active transaction, or begin a new one if there is none
+		 */
+		REQUIRED,
+		/**
+		 * Always begin a new transaction, suspending the active one
+		 */
+		REQUIRES_NEW
+	}
+
+	/**
+	 * Executes the callback in a read-write transaction, joining the active
+	 * one if any
+	 */
 	public Object doInTransaction(Transactionable callback) {
-		UserTransaction tx = transactionService.getUserTransaction();
+		return doInTransaction(callback, false, Propagation.REQUIRED);
+	}
+
+	/**
+	 * Executes the callback in a read-only transaction, joining the active
+	 * one if any. Read-only transactions skip flushing and locking.
+	 */
+	public Object doInReadOnlyTransaction(Transactionable callback) {
+		return doInTransaction(callback, true, Propagation.REQUIRED);
+	}
+
+	/**
+	 * @param callback
+	 * @param readOnly
+	 *            ignored when joining, the active transaction keeps its mode
+	 * @param propagation
+	 */
+	public Object doInTransaction(Transactionable callback, boolean readOnly, Propagation propagation) {
+		if (propagation == Propagation.REQUIRED && isTransactionActive()) {
+			AuthenticationMetrics.count(Counter.JOINED_TRANSACTIONS);
+			return callback.execute();
+		}
+		UserTransaction tx = propagation == Propagation.REQUIRES_NEW ? transactionService.getNonPropagatingUserTransaction(readOnly)
+				: transactionService.getUserTransaction(readOnly);
 		Object result;
 		try {
 			tx.begin();
 			result =  callback.execute();
 			tx.commit();
+			AuthenticationMetrics.count(Counter.TRANSACTION_COMMITS);
 		} catch (Throwable ex) {
 			logger.error(ex);
+			AuthenticationMetrics.count(Counter.TRANSACTION_ROLLBACKS);
 			try {
 				tx.rollback();
 			} catch (Exception ex2) {
@@ -63,5 +111,9 @@ public class TransactionalHelper {
 		return result;
 		
 	}
+
+	public boolean isTransactionActive() {
+		return AlfrescoTransactionSupport.getTransactionId() != null;
+	}
 	
 }
@@ -31,6 +31,8 @@ import org.alfresco.web.scripts.servlet.WebScriptServletRequest;
 import org.alfresco.web.scripts.servlet.WebScriptServletResponse;
 
 import com.iplanet.sso.SSOToken;
+import com.sourcesense.alfresco.monitor.AuthenticationMetrics;
+import com.sourcesense.alfresco.monitor.AuthenticationMetrics.Stage;
 import com.sourcesense.alfresco.opensso.OpenSSOClient;
 
 public class OpenSSOAuthenticationFactory implements ServletAuthenticatorFactory {
@@ -80,12 +82,23 @@ public class OpenSSOAuthenticationFactory implements ServletAuthenticatorFactory
 		}
 		
 		public boolean authenticate(RequiredAuthentication required, boolean isGuest) {
+			long start = System.nanoTime();
+			try {
+				return doAuthenticate(required, isGuest);
+			} finally {
+				AuthenticationMetrics.record(Stage.WEBSCRIPT_AUTHENTICATION, start);
+			}
+		}
+
+		private boolean doAuthenticate(RequiredAuthentication required, boolean isGuest) {
 			HttpServletRequest httpServletRequest = servletReq.getHttpServletRequest();
 			HttpServletResponse httpServletResponse = servletRes.getHttpServletResponse();
 			String ticket = httpServletRequest.getParameter("alf_ticket");
 			
             if (isGuest && RequiredAuthentication.guest == required) {
+                long start = System.nanoTime();
                 authenticationService.authenticateAsGuest();
+                AuthenticationMetrics.record(Stage.GUEST_AUTHENTICATION, start);
                 return true;
             } 
             
@@ -112,9 +125,13 @@ public class OpenSSOAuthenticationFactory implements ServletAuthenticatorFactory
 				return false;
 			}
 			
+			// token parsing and validation are timed by the client; setting the
+			// current user is where Alfresco creates a missing person
+			long start = System.nanoTime();
 			String principal = openSSOClient.getPrincipal(token);
 			
 			authenticationComponent.setCurrentUser(principal);
+			AuthenticationMetrics.record(Stage.PROVISIONING, start);
 			
 			return true;
 			
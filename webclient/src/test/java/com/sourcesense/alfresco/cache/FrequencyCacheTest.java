@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FrequencyCacheTest {
+
+	private static final long ONE_MINUTE = 60 * 1000;
+
+	@Test
+	public void shouldReturnCachedValue() throws Exception {
+		FrequencyCache<String, String> cache = new FrequencyCache<String, String>(100, ONE_MINUTE);
+		cache.put("user1", "value1");
+		assertEquals("value1", cache.get("user1"));
+		assertNull(cache.get("user2"));
+		assertEquals(0.5, cache.getHitRate(), 0.001);
+	}
+
+	@Test
+	public void shouldExpireAfterWrite() throws Exception {
+		FrequencyCache<String, String> cache = new FrequencyCache<String, String>(100, 10);
+		cache.put("user1", "value1");
+		Thread.sleep(20);
+		assertNull(cache.get("user1"));
+	}
+
+	@Test
+	public void shouldKeepHotEntriesUnderFloodOfOneOffKeys() throws Exception {
+		FrequencyCache<String, String> cache = new FrequencyCache<String, String>(16, ONE_MINUTE);
+		for (int i = 0; i < 16; i++) {
+			cache.put("service" + i, "service" + i);
+			for (int j = 0; j < 10; j++) {
+				cache.get("service" + i);
+			}
+		}
+		for (int i = 0; i < 1000; i++) {
+			cache.get("user" + i);
+			cache.put("user" + i, "user" + i);
+		}
+		int hot = 0;
+		for (int i = 0; i < 16; i++) {
+			if (cache.get("service" + i) != null) {
+				hot++;
+			}
+		}
+		assertTrue(cache.size() <= 16);
+		assertTrue(hot >= 12);
+	}
+
+	@Test
+	public void shouldEvictLessPopularEntry() throws Exception {
+		FrequencyCache<String, String> cache = new FrequencyCache<String, String>(16, ONE_MINUTE);
+		for (int i = 0; i < 16; i++) {
+			cache.put("user" + i, "user" + i);
+		}
+		for (int j = 0; j < 5; j++) {
+			cache.get("service");
+		}
+		cache.put("service", "service");
+		assertEquals(1, cache.getEvictionCount());
+		assertNotNull(cache.get("service"));
+	}
+
+	@Test
+	public void shouldNotAdmitOneOffEntryWhenFull() throws Exception {
+		FrequencyCache<String, String> cache = new FrequencyCache<String, String>(16, ONE_MINUTE);
+		for (int i = 0; i < 16; i++) {
+			cache.put("user" + i, "user" + i);
+			cache.get("user" + i);
+		}
+		cache.put("oneoff", "oneoff");
+		assertEquals(0, cache.getEvictionCount());
+		assertNull(cache.get("oneoff"));
+	}
+}
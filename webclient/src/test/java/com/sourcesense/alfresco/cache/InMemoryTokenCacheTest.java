@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class InMemoryTokenCacheTest {
+
+	private static final long ONE_MINUTE = 60 * 1000;
+
+	private InMemoryTokenCache tokenCache;
+
+	@Before
+	public void setUp() throws Exception {
+		tokenCache = new InMemoryTokenCache(2);
+	}
+
+	@Test
+	public void shouldHitValidatedToken() throws Exception {
+		tokenCache.put("token1", System.currentTimeMillis() + ONE_MINUTE);
+		assertTrue(tokenCache.contains("token1"));
+		assertFalse(tokenCache.contains("token2"));
+		assertEquals(1, tokenCache.getHitCount());
+		assertEquals(1, tokenCache.getMissCount());
+	}
+
+	@Test
+	public void shouldMissExpiredToken() throws Exception {
+		tokenCache.put("token1", System.currentTimeMillis() + 10);
+		Thread.sleep(20);
+		assertFalse(tokenCache.contains("token1"));
+		assertEquals(0, tokenCache.size());
+	}
+
+	@Test
+	public void shouldNotExceedMaxEntries() throws Exception {
+		tokenCache.put("token1", System.currentTimeMillis() + ONE_MINUTE);
+		tokenCache.put("token2", System.currentTimeMillis() + ONE_MINUTE);
+		tokenCache.put("token3", System.currentTimeMillis() + ONE_MINUTE);
+		assertTrue(tokenCache.size() <= 2);
+		assertTrue(tokenCache.contains("token3"));
+	}
+
+	@Test
+	public void shouldEvictLeastRecentlyUsedToken() throws Exception {
+		tokenCache.put("token1", System.currentTimeMillis() + ONE_MINUTE);
+		tokenCache.put("token2", System.currentTimeMillis() + ONE_MINUTE);
+		assertTrue(tokenCache.contains("token1"));
+		tokenCache.put("token3", System.currentTimeMillis() + ONE_MINUTE);
+		assertTrue(tokenCache.contains("token1"));
+		assertFalse(tokenCache.contains("token2"));
+		assertEquals(1, tokenCache.getEvictionCount());
+	}
+
+	@Test
+	public void shouldRemoveToken() throws Exception {
+		tokenCache.put("token1", System.currentTimeMillis() + ONE_MINUTE);
+		tokenCache.remove("token1");
+		assertFalse(tokenCache.contains("token1"));
+	}
+}
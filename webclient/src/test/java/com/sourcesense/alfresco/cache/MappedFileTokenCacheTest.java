@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedFileTokenCacheTest {
+
+	private static final long ONE_MINUTE = 60 * 1000;
+	private static final byte[] KEY = "0123456789abcdef0123".getBytes();
+
+	private File file;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("tokens", ".cache");
+		file.delete();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		file.delete();
+	}
+
+	@Test
+	public void shouldShareTokensBetweenMappings() throws Exception {
+		MappedFileTokenCache webclient = new MappedFileTokenCache(file, 64, ONE_MINUTE, KEY);
+		MappedFileTokenCache share = new MappedFileTokenCache(file, 64, ONE_MINUTE, KEY);
+
+		webclient.put("AQIC5wM2LY4Sfcz*AAJTSQACMDE.*", System.currentTimeMillis() + ONE_MINUTE);
+		assertTrue(share.contains("AQIC5wM2LY4Sfcz*AAJTSQACMDE.*"));
+		assertEquals(1, share.size());
+
+		share.remove("AQIC5wM2LY4Sfcz*AAJTSQACMDE.*");
+		assertFalse(webclient.contains("AQIC5wM2LY4Sfcz*AAJTSQACMDE.*"));
+	}
+
+	@Test
+	public void shouldNotTrustExpirationBeyondTimeToLive() throws Exception {
+		MappedFileTokenCache writer = new MappedFileTokenCache(file, 64, 60 * ONE_MINUTE, KEY);
+		MappedFileTokenCache reader = new MappedFileTokenCache(file, 64, ONE_MINUTE, KEY);
+
+		writer.put("AQIC5wM2LY4Sfcz*AAJTSQACMDE.*", System.currentTimeMillis() + 30 * ONE_MINUTE);
+		assertTrue(writer.contains("AQIC5wM2LY4Sfcz*AAJTSQACMDE.*"));
+		assertFalse(reader.contains("AQIC5wM2LY4Sfcz*AAJTSQACMDE.*"));
+	}
+
+	@Test
+	public void shouldMissExpiredToken() throws Exception {
+		MappedFileTokenCache tokenCache = new MappedFileTokenCache(file, 64, ONE_MINUTE, KEY);
+		tokenCache.put("token1", System.currentTimeMillis() + 10);
+		Thread.sleep(20);
+		assertFalse(tokenCache.contains("token1"));
+		assertEquals(0, tokenCache.size());
+	}
+
+	@Test
+	public void shouldRefuseFileOfDifferentSize() throws Exception {
+		new MappedFileTokenCache(file, 64, ONE_MINUTE, KEY);
+		try {
+			new MappedFileTokenCache(file, 128, ONE_MINUTE, KEY);
+			fail("Cache mapped with a different geometry");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void shouldIgnoreEntriesSignedWithAnotherKey() throws Exception {
+		MappedFileTokenCache webclient = new MappedFileTokenCache(file, 64, ONE_MINUTE, KEY);
+		MappedFileTokenCache forger = new MappedFileTokenCache(file, 64, ONE_MINUTE, "fedcba9876543210fedc".getBytes());
+
+		forger.put("AQIC5wM2LY4Sfcz*AAJTSQACMDE.*", System.currentTimeMillis() + ONE_MINUTE);
+
+		assertTrue(forger.contains("AQIC5wM2LY4Sfcz*AAJTSQACMDE.*"));
+		assertFalse(webclient.contains("AQIC5wM2LY4Sfcz*AAJTSQACMDE.*"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRequireSigningKey() throws Exception {
+		new MappedFileTokenCache(file, 64, ONE_MINUTE, "short".getBytes());
+	}
+
+	@Test
+	public void shouldOnlyRemoveTheGivenToken() throws Exception {
+		MappedFileTokenCache tokenCache = new MappedFileTokenCache(file, 64, ONE_MINUTE, KEY);
+		tokenCache.put("token1", System.currentTimeMillis() + ONE_MINUTE);
+		tokenCache.put("token2", System.currentTimeMillis() + ONE_MINUTE);
+
+		tokenCache.remove("token1");
+
+		assertFalse(tokenCache.contains("token1"));
+		assertTrue(tokenCache.contains("token2"));
+	}
+}
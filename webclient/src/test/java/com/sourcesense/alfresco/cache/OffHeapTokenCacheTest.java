@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class OffHeapTokenCacheTest {
+
+	private static final long ONE_MINUTE = 60 * 1000;
+
+	private OffHeapTokenCache tokenCache;
+
+	@Before
+	public void setUp() throws Exception {
+		tokenCache = new OffHeapTokenCache(OffHeapTokenCache.WAYS);
+	}
+
+	@Test
+	public void shouldHitValidatedToken() throws Exception {
+		tokenCache.put("AQIC5wM2LY4Sfcz*AAJTSQACMDE.*", System.currentTimeMillis() + ONE_MINUTE);
+		assertTrue(tokenCache.contains("AQIC5wM2LY4Sfcz*AAJTSQACMDE.*"));
+		assertFalse(tokenCache.contains("AQIC5wM2LY4Sfcy*AAJTSQACMDE.*"));
+		assertEquals(1, tokenCache.getHitCount());
+		assertEquals(1, tokenCache.getMissCount());
+		assertEquals(OffHeapTokenCache.WAYS * OffHeapTokenCache.SLOT_SIZE, tokenCache.getMemoryBytes());
+	}
+
+	@Test
+	public void shouldMissExpiredAndRemovedTokens() throws Exception {
+		tokenCache.put("token1", System.currentTimeMillis() + 10);
+		tokenCache.put("token2", System.currentTimeMillis() + ONE_MINUTE);
+		Thread.sleep(20);
+		assertFalse(tokenCache.contains("token1"));
+		tokenCache.remove("token2");
+		assertFalse(tokenCache.contains("token2"));
+		assertEquals(0, tokenCache.size());
+	}
+
+	@Test
+	public void shouldEvictEntryExpiringFirstWhenFull() throws Exception {
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < OffHeapTokenCache.WAYS; i++) {
+			tokenCache.put("token" + i, now + ONE_MINUTE + i);
+		}
+		tokenCache.put("newToken", now + 2 * ONE_MINUTE);
+		assertEquals(OffHeapTokenCache.WAYS, tokenCache.size());
+		assertTrue(tokenCache.contains("newToken"));
+		assertFalse(tokenCache.contains("token0"));
+		assertTrue(tokenCache.contains("token1"));
+	}
+
+	@Test
+	public void shouldNotCacheTokensNotFittingSlots() throws Exception {
+		StringBuilder longToken = new StringBuilder();
+		while (longToken.length() <= OffHeapTokenCache.MAX_KEY_LENGTH) {
+			longToken.append("AQIC5wM2LY4Sfcz");
+		}
+		tokenCache.put(longToken.toString(), System.currentTimeMillis() + ONE_MINUTE);
+		tokenCache.put("t\u00f6ken", System.currentTimeMillis() + ONE_MINUTE);
+		assertFalse(tokenCache.contains(longToken.toString()));
+		assertFalse(tokenCache.contains("t\u00f6ken"));
+		assertEquals(0, tokenCache.size());
+	}
+
+	@Test
+	public void shouldPublishStatisticsAsMBean() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("com.sourcesense.alfresco.opensso:type=Cache,name=offHeapTest");
+		tokenCache.put("AQIC5wM2LY4Sfcz*AAJTSQACMDE.*", System.currentTimeMillis() + ONE_MINUTE);
+		server.registerMBean(tokenCache, name);
+		try {
+			assertEquals(1, server.getAttribute(name, "Size"));
+			assertEquals((long) OffHeapTokenCache.WAYS * OffHeapTokenCache.SLOT_SIZE, server.getAttribute(name, "MemoryBytes"));
+		} finally {
+			server.unregisterMBean(name);
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sourcesense.alfresco.cluster.InvalidationBus.Region;
+
+public class TcpInvalidationBusTest {
+
+	private static final byte[] SECRET = "0123456789abcdef0123".getBytes();
+
+	private TcpInvalidationBus webclient;
+	private TcpInvalidationBus share;
+
+	@Before
+	public void setUp() throws Exception {
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		webclient = new TcpInvalidationBus(loopback, 0, SECRET, 200, 100, 1000);
+		share = new TcpInvalidationBus(loopback, 0, SECRET, 200, 100, 1000);
+		webclient.start();
+		share.start();
+		InetSocketAddress webclientAddress = new InetSocketAddress(loopback, webclient.getLocalPort());
+		InetSocketAddress shareAddress = new InetSocketAddress(loopback, share.getLocalPort());
+		webclient.addPeer(webclientAddress);
+		webclient.addPeer(shareAddress);
+		share.addPeer(webclientAddress);
+		share.addPeer(shareAddress);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		webclient.close();
+		share.close();
+	}
+
+	@Test
+	public void shouldDeliverCoalescedBatchToPeers() throws Exception {
+		RecordingListener shareListener = new RecordingListener(2);
+		RecordingListener webclientListener = new RecordingListener(1);
+		share.addListener(shareListener);
+		webclient.addListener(webclientListener);
+
+		webclient.publish(Region.TOKEN, "AQIC5wM2LY4Sfcz*AAJTSQACMDE.*");
+		webclient.publish(Region.TOKEN, "AQIC5wM2LY4Sfcz*AAJTSQACMDE.*");
+		webclient.publish(Region.IDENTITY, "gfernandes");
+		webclient.publish(Region.TOKEN, "AQIC5wM2LY4Sfcz*AAJTSQACMDE.*");
+
+		assertTrue(shareListener.await());
+		assertEquals(2, webclient.getSentCount());
+		assertEquals("TOKEN AQIC5wM2LY4Sfcz*AAJTSQACMDE.*", shareListener.invalidations.get(0));
+		assertEquals("IDENTITY gfernandes", shareListener.invalidations.get(1));
+
+		share.publish(Region.PRINCIPAL, "admin");
+		assertTrue(webclientListener.await());
+		assertEquals(1, webclientListener.invalidations.size());
+		assertEquals(2, share.getReceivedCount());
+	}
+
+	@Test
+	public void shouldIgnoreFramesSignedWithAnotherSecret() throws Exception {
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		TcpInvalidationBus intruder = new TcpInvalidationBus(loopback, 0, "fedcba9876543210fedc".getBytes(), 200, 100, 1000);
+		try {
+			intruder.start();
+			intruder.addPeer(new InetSocketAddress(loopback, share.getLocalPort()));
+			RecordingListener shareListener = new RecordingListener(1);
+			share.addListener(shareListener);
+
+			intruder.publish(Region.PRINCIPAL, "admin");
+
+			assertFalse(shareListener.await(1));
+			assertEquals(0, share.getReceivedCount());
+		} finally {
+			intruder.close();
+		}
+	}
+
+	@Test
+	public void shouldReachPeersListedWithoutPortOnTheDefaultOne() throws Exception {
+		List<InetSocketAddress> peers = TcpInvalidationBus.parsePeers("127.0.0.1:7000, 127.0.0.2", 47810);
+
+		assertEquals(2, peers.size());
+		assertEquals(7000, peers.get(0).getPort());
+		assertEquals(47810, peers.get(1).getPort());
+	}
+
+	@Test
+	public void shouldCountEvictionsDroppedForUnreachablePeer() throws Exception {
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		ServerSocket closed = new ServerSocket(0, 1, loopback);
+		closed.close();
+		share.addPeer(new InetSocketAddress(loopback, closed.getLocalPort()));
+		RecordingListener webclientListener = new RecordingListener(1);
+		webclient.addListener(webclientListener);
+
+		share.publish(Region.PERSON, "gfernandes");
+
+		assertTrue(webclientListener.await());
+		long deadline = System.currentTimeMillis() + 5000;
+		while (share.getDroppedCount() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		assertEquals(1, share.getDroppedCount());
+	}
+
+	private static class RecordingListener implements InvalidationListener {
+		final List<String> invalidations = new ArrayList<String>();
+		final CountDownLatch latch;
+
+		RecordingListener(int expected) {
+			latch = new CountDownLatch(expected);
+		}
+
+		public synchronized void invalidated(Region region, String key) {
+			invalidations.add(region + " " + key);
+			latch.countDown();
+		}
+
+		boolean await() throws InterruptedException {
+			return await(5);
+		}
+
+		boolean await(int seconds) throws InterruptedException {
+			return latch.await(seconds, TimeUnit.SECONDS);
+		}
+	}
+}
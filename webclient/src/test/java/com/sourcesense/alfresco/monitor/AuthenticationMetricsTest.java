@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.monitor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import com.sourcesense.alfresco.cache.FrequencyCache;
+
+public class AuthenticationMetricsTest {
+
+	@Test
+	public void shouldPublishCachesWithTheOtherMBeans() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(AuthenticationMetrics.DOMAIN + ":type=Cache,application=\"metricsTest\",name=identity");
+		FrequencyCache<String, String> cache = new FrequencyCache<String, String>(100, 60000);
+		cache.put("gfernandes", "GROUP_sales");
+		AuthenticationMetrics metrics = AuthenticationMetrics.getInstance();
+
+		metrics.registerCache("identity", cache);
+		metrics.register("metricsTest");
+		try {
+			assertTrue(server.isRegistered(name));
+			assertEquals(1, server.getAttribute(name, "Size"));
+			assertEquals(100, server.getAttribute(name, "MaxEntries"));
+		} finally {
+			metrics.unregister();
+		}
+		assertFalse(server.isRegistered(name));
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.monitor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	private static final long ONE_MILLI = 1000000;
+
+	@Test
+	public void shouldReportPercentilesWithinBucketPrecision() throws Exception {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 0; i < 990; i++) {
+			histogram.record(ONE_MILLI);
+		}
+		for (int i = 0; i < 10; i++) {
+			histogram.record(100 * ONE_MILLI);
+		}
+		assertEquals(1000, histogram.getCount());
+		assertTrue(histogram.getPercentile50Millis() >= 1 && histogram.getPercentile50Millis() <= 2.1);
+		assertTrue(histogram.getPercentile99Millis() <= 2.1);
+		assertTrue(histogram.getPercentile999Millis() >= 100);
+		assertEquals(100.0, histogram.getMaxMillis(), 0.001);
+		assertEquals(1.99, histogram.getMeanMillis(), 0.001);
+	}
+
+	@Test
+	public void shouldCountAcrossThreadsAndReset() throws Exception {
+		final StripedCounter counter = new StripedCounter();
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < 10000; j++) {
+						counter.increment();
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(40000, counter.sum());
+		counter.reset();
+		assertEquals(0, counter.sum());
+	}
+}
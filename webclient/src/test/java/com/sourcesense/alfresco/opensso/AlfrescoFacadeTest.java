@@ -0,0 +1,490 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.opensso;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.UserTransaction;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.security.AuthenticationService;
+import org.alfresco.service.cmr.security.AuthorityService;
+import org.alfresco.service.cmr.security.NoSuchPersonException;
+import org.alfresco.service.cmr.security.PermissionService;
+import org.alfresco.service.cmr.security.PersonService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.web.app.servlet.AuthenticationHelper;
+import org.alfresco.web.bean.repository.User;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockHttpSession;
+import org.springframework.mock.web.MockServletContext;
+import org.springframework.web.context.WebApplicationContext;
+
+import com.sourcesense.alfresco.transaction.MockTransactionService;
+
+public class AlfrescoFacadeTest {
+
+	private static final String PRINCIPAL = "opensso";
+
+	private final Set<String> people = Collections.synchronizedSet(new HashSet<String>());
+	private final Set<String> memberships = Collections.synchronizedSet(new HashSet<String>());
+	private MockTransactionService transactions;
+	private MockService personService;
+	private MockService nodeService;
+	private MockService authorityService;
+	private MockService authenticationService;
+	private AlfrescoFacade facade;
+
+	@Before
+	public void setUp() throws Exception {
+		transactions = new MockTransactionService();
+		personService = new MockService();
+		personService.answer("personExists", new MockService.Answer() {
+			public Object answer(Object[] args) {
+				return people.contains(args[0]);
+			}
+		});
+		personService.answer("createPerson", new MockService.Answer() {
+			@SuppressWarnings("unchecked")
+			public Object answer(Object[] args) {
+				String userName = (String) ((Map<QName, Serializable>) args[0]).get(ContentModel.PROP_USERNAME);
+				people.add(userName);
+				return personRef(userName);
+			}
+		});
+		personService.answer("getPerson", new MockService.Answer() {
+			public Object answer(Object[] args) {
+				if (!people.contains(args[0])) {
+					throw new NoSuchPersonException((String) args[0]);
+				}
+				return personRef((String) args[0]);
+			}
+		});
+		nodeService = new MockService();
+		nodeService.answer("getProperty", new MockService.Answer() {
+			public Object answer(Object[] args) {
+				String id = ((NodeRef) args[0]).getId();
+				return args[1].equals(ContentModel.PROP_USERNAME) ? id : new NodeRef("workspace://SpacesStore/home-" + id);
+			}
+		});
+		authorityService = new MockService();
+		authorityService.answer("getAuthoritiesForUser", new MockService.Answer() {
+			public Object answer(Object[] args) {
+				Set<String> authorities = new HashSet<String>();
+				for (String membership : new ArrayList<String>(memberships)) {
+					if (membership.endsWith("/" + args[0])) {
+						authorities.add(membership.substring(0, membership.indexOf('/')));
+					}
+				}
+				return authorities;
+			}
+		});
+		authorityService.answer("authorityExists", Boolean.TRUE);
+		authorityService.answer("createAuthority", new MockService.Answer() {
+			public Object answer(Object[] args) {
+				return "GROUP_" + args[2];
+			}
+		});
+		authorityService.answer("addAuthority", new MockService.Answer() {
+			public Object answer(Object[] args) {
+				memberships.add(args[0] + "/" + args[1]);
+				return null;
+			}
+		});
+		authorityService.answer("removeAuthority", new MockService.Answer() {
+			public Object answer(Object[] args) {
+				memberships.remove(args[0] + "/" + args[1]);
+				return null;
+			}
+		});
+		authenticationService = new MockService();
+		authenticationService.answer("getCurrentTicket", "TICKET_1");
+
+		MockAlfrescoApplicationContext context = new MockAlfrescoApplicationContext();
+		context.register(TransactionService.class, transactions.getTransactionService());
+		context.register(PersonService.class, personService.proxy(PersonService.class));
+		context.register(NodeService.class, nodeService.proxy(NodeService.class));
+		context.register(AuthorityService.class, authorityService.proxy(AuthorityService.class));
+		context.register(AuthenticationService.class, authenticationService.proxy(AuthenticationService.class));
+		MockServletContext servletContext = new MockServletContext();
+		servletContext.setAttribute(WebApplicationContext.ROOT_WEB_APPLICATION_CONTEXT_ATTRIBUTE, context);
+		facade = new AlfrescoFacade(servletContext);
+	}
+
+	private static NodeRef personRef(String userName) {
+		return new NodeRef("workspace://SpacesStore/" + userName);
+	}
+
+	private MockHttpSession provision(String principal, String... groups) {
+		MockHttpSession session = new MockHttpSession();
+		OpenSSOIdentity identity = new OpenSSOIdentity(principal, new HashMap<String, String>(), Arrays.asList(groups));
+		facade.provisionUser(new MockHttpServletRequest(), new MockHttpServletResponse(), session, identity);
+		return session;
+	}
+
+	private static String userOf(MockHttpSession session) {
+		User user = (User) session.getAttribute(AuthenticationHelper.AUTHENTICATION_USER);
+		assertNotNull(user);
+		return user.getUserName();
+	}
+
+	@Test
+	public void shouldFingerprintGroupsRegardlessOfOrder() throws Exception {
+		String fingerprint = AlfrescoFacade.groupsFingerprint(Arrays.asList("RH", "marketing", "administration"));
+		assertEquals(fingerprint, AlfrescoFacade.groupsFingerprint(Arrays.asList("administration", "RH", "marketing", "RH")));
+	}
+
+	@Test
+	public void shouldChangeFingerprintWhenGroupsChange() throws Exception {
+		String fingerprint = AlfrescoFacade.groupsFingerprint(Arrays.asList("RH", "marketing"));
+		assertTrue(!fingerprint.equals(AlfrescoFacade.groupsFingerprint(Arrays.asList("RH"))));
+		assertTrue(!fingerprint.equals(AlfrescoFacade.groupsFingerprint(Arrays.asList("RHmarketing"))));
+	}
+
+	@Test
+	public void shouldProvisionNewUserInOneTransaction() throws Exception {
+		MockHttpSession session = provision(PRINCIPAL, "RH");
+
+		assertEquals(PRINCIPAL, userOf(session));
+		assertEquals(1, personService.getCallCount("createPerson"));
+		assertTrue(memberships.contains("GROUP_RH/" + PRINCIPAL));
+		assertEquals(0, transactions.getRollbackCount());
+	}
+
+	@Test
+	public void shouldRetryProvisioningOfDeletedUser() throws Exception {
+		provision(PRINCIPAL, "RH");
+		people.remove(PRINCIPAL);
+		facade.invalidatePerson(PRINCIPAL);
+
+		MockHttpSession session = provision(PRINCIPAL, "RH", "marketing");
+
+		assertEquals(PRINCIPAL, userOf(session));
+		assertEquals(2, personService.getCallCount("createPerson"));
+		assertEquals(1, transactions.getRollbackCount());
+	}
+
+	@Test
+	public void shouldRetryProvisioningOfUserCreatedMeanwhile() throws Exception {
+		personService.answer("createPerson", new MockService.Answer() {
+			public Object answer(Object[] args) {
+				people.add(PRINCIPAL);
+				throw new IllegalStateException("Person '" + PRINCIPAL + "' already exists.");
+			}
+		});
+
+		MockHttpSession session = provision(PRINCIPAL, "RH");
+
+		assertEquals(PRINCIPAL, userOf(session));
+		assertEquals(1, personService.getCallCount("createPerson"));
+	}
+
+	@Test
+	public void shouldNotRetryOtherProvisioningFailures() throws Exception {
+		authorityService.answer("addAuthority", new MockService.Answer() {
+			public Object answer(Object[] args) {
+				throw new IllegalStateException("Group service unavailable");
+			}
+		});
+
+		try {
+			provision(PRINCIPAL, "RH");
+			fail("Provisioning should fail");
+		} catch (IllegalStateException e) {
+			assertEquals("Group service unavailable", e.getMessage());
+		}
+		assertEquals(1, personService.getCallCount("createPerson"));
+		assertEquals(1, transactions.getRollbackCount());
+		assertFalse(facade.isGroupsSynchronized(PRINCIPAL, Arrays.asList("RH")));
+	}
+
+	@Test
+	public void shouldRecordGroupsOnlyOnceTheTransactionCommits() throws Exception {
+		List<String> groups = Arrays.asList("RH");
+		UserTransaction tx = transactions.getTransactionService().getUserTransaction();
+		tx.begin();
+		facade.createOrUpdateGroups(PRINCIPAL, groups);
+		assertFalse(facade.isGroupsSynchronized(PRINCIPAL, groups));
+		tx.rollback();
+		assertFalse(facade.isGroupsSynchronized(PRINCIPAL, groups));
+
+		tx = transactions.getTransactionService().getUserTransaction();
+		tx.begin();
+		facade.createOrUpdateGroups(PRINCIPAL, groups);
+		tx.commit();
+		assertTrue(facade.isGroupsSynchronized(PRINCIPAL, groups));
+	}
+
+	@Test
+	public void shouldCreateConcurrentlyProvisionedUserOnce() throws Exception {
+		int threads = 8;
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<MockHttpSession>> sessions = new ArrayList<Future<MockHttpSession>>();
+		for (int i = 0; i < threads; i++) {
+			sessions.add(executor.submit(new Callable<MockHttpSession>() {
+				public MockHttpSession call() throws Exception {
+					start.await();
+					return provision(PRINCIPAL, "RH");
+				}
+			}));
+		}
+		start.countDown();
+		for (Future<MockHttpSession> session : sessions) {
+			assertEquals(PRINCIPAL, userOf(session.get()));
+		}
+		executor.shutdown();
+
+		assertEquals(1, personService.getCallCount("createPerson"));
+		assertEquals(1, authorityService.getCallCount("addAuthority"));
+		assertEquals(0, transactions.getRollbackCount());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRejectIdentityWithoutPrincipal() throws Exception {
+		provision(null, "RH");
+	}
+
+	@Test
+	public void shouldSkipTransactionWhenGroupsAreUnchanged() throws Exception {
+		facade.createOrUpdateGroups(PRINCIPAL, Arrays.asList("RH", "marketing"));
+		int begun = transactions.getTransactions().size();
+		authorityService.reset();
+
+		facade.createOrUpdateGroups(PRINCIPAL, Arrays.asList("marketing", "RH"));
+
+		assertTrue(facade.isGroupsSynchronized(PRINCIPAL, Arrays.asList("RH", "marketing")));
+		assertEquals(begun, transactions.getTransactions().size());
+		assertEquals(0, authorityService.getCalls().size());
+	}
+
+	@Test
+	public void shouldOnlyAddNewGroups() throws Exception {
+		memberships.add("GROUP_RH/" + PRINCIPAL);
+		authorityService.answer("authorityExists", new MockService.Answer() {
+			public Object answer(Object[] args) {
+				return !args[0].equals("GROUP_sales");
+			}
+		});
+
+		facade.createOrUpdateGroups(PRINCIPAL, Arrays.asList("RH", "marketing", "sales"));
+
+		assertEquals(1, transactions.getCommitCount());
+		assertEquals(2, authorityService.getCallCount("addAuthority"));
+		assertTrue(authorityService.getCalls().contains("addAuthority(GROUP_marketing, opensso)"));
+		assertTrue(authorityService.getCalls().contains("createAuthority(GROUP, null, sales)"));
+		assertTrue(authorityService.getCalls().contains("addAuthority(GROUP_sales, opensso)"));
+		assertEquals(0, authorityService.getCallCount("removeAuthority"));
+		assertTrue(facade.isGroupsSynchronized(PRINCIPAL, Arrays.asList("RH", "marketing", "sales")));
+	}
+
+	@Test
+	public void shouldOnlyRemoveDroppedGroups() throws Exception {
+		memberships.add("GROUP_RH/" + PRINCIPAL);
+		memberships.add("GROUP_marketing/" + PRINCIPAL);
+		memberships.add("GROUP_EVERYONE/" + PRINCIPAL);
+
+		facade.createOrUpdateGroups(PRINCIPAL, Arrays.asList("RH"));
+
+		assertEquals(1, transactions.getCommitCount());
+		assertEquals(1, authorityService.getCallCount("removeAuthority"));
+		assertTrue(authorityService.getCalls().contains("removeAuthority(GROUP_marketing, opensso)"));
+		assertEquals(0, authorityService.getCallCount("addAuthority"));
+		assertTrue(memberships.contains("GROUP_EVERYONE/" + PRINCIPAL));
+		assertFalse(facade.isGroupsSynchronized(PRINCIPAL, Arrays.asList("RH", "marketing")));
+	}
+
+	@Test
+	public void shouldAuthenticateGuestInTransactionOnlyOnMiss() throws Exception {
+		people.add(PermissionService.GUEST_AUTHORITY);
+		MockHttpSession session = new MockHttpSession();
+
+		facade.authenticateAsGuest(session);
+
+		assertEquals(PermissionService.GUEST_AUTHORITY, userOf(session));
+		assertEquals(1, transactions.getTransactions().size());
+		assertEquals(1, transactions.getCommitCount());
+		assertFalse(transactions.getTransactions().get(0).isReadOnly());
+		assertEquals(1, authenticationService.getCallCount("authenticateAsGuest"));
+
+		facade.authenticateAsGuest(session);
+
+		assertEquals(1, transactions.getTransactions().size());
+		assertEquals(1, authenticationService.getCallCount("authenticateAsGuest"));
+		assertEquals(1, authenticationService.getCallCount("validate"));
+
+		facade.authenticateAsGuest(new MockHttpSession());
+
+		assertEquals(2, transactions.getCommitCount());
+		assertEquals(1, personService.getCallCount("getPerson"));
+	}
+
+	@Test
+	public void shouldReadPersonOnlyOnCacheMiss() throws Exception {
+		people.add(PRINCIPAL);
+		MockHttpSession session = new MockHttpSession();
+
+		facade.setAuthenticatedUser(new MockHttpServletRequest(), new MockHttpServletResponse(), session, PRINCIPAL);
+		facade.setAuthenticatedUser(new MockHttpServletRequest(), new MockHttpServletResponse(), session, PRINCIPAL);
+
+		assertEquals(1, personService.getCallCount("getPerson"));
+		assertEquals(1, homeFolderReads());
+		User user = (User) session.getAttribute(AuthenticationHelper.AUTHENTICATION_USER);
+		assertEquals("home-" + PRINCIPAL, user.getHomeSpaceId());
+
+		facade.invalidatePerson(PRINCIPAL);
+		facade.setAuthenticatedUser(new MockHttpServletRequest(), new MockHttpServletResponse(), session, PRINCIPAL);
+
+		assertEquals(2, personService.getCallCount("getPerson"));
+		assertEquals(2, homeFolderReads());
+	}
+
+	@Test
+	public void shouldEvictPersonAndGroupsWhenPersonIsDeleted() throws Exception {
+		provision(PRINCIPAL, "RH");
+		UserTransaction tx = transactions.getTransactionService().getUserTransaction();
+		tx.begin();
+		facade.new PersonPolicies().beforeDeleteNode(personRef(PRINCIPAL));
+		tx.commit();
+
+		assertEvicted(PRINCIPAL, "RH");
+	}
+
+	@Test
+	public void shouldEvictPersonAndGroupsWhenPersonIsUpdated() throws Exception {
+		provision(PRINCIPAL, "RH");
+		Map<QName, Serializable> before = new HashMap<QName, Serializable>();
+		before.put(ContentModel.PROP_USERNAME, PRINCIPAL);
+		before.put(ContentModel.PROP_HOMEFOLDER, new NodeRef("workspace://SpacesStore/home-" + PRINCIPAL));
+		Map<QName, Serializable> after = new HashMap<QName, Serializable>(before);
+		after.put(ContentModel.PROP_HOMEFOLDER, new NodeRef("workspace://SpacesStore/archive"));
+
+		facade.new PersonPolicies().onUpdateProperties(personRef(PRINCIPAL), before, after);
+
+		assertEvicted(PRINCIPAL, "RH");
+	}
+
+	private void assertEvicted(String principal, String... groups) {
+		assertFalse(facade.isGroupsSynchronized(principal, Arrays.asList(groups)));
+		int reads = personService.getCallCount("getPerson");
+		facade.setAuthenticatedUser(new MockHttpServletRequest(), new MockHttpServletResponse(), new MockHttpSession(), principal);
+		assertEquals(reads + 1, personService.getCallCount("getPerson"));
+	}
+
+	private int homeFolderReads() {
+		int reads = 0;
+		for (String call : nodeService.getCalls()) {
+			if (call.startsWith("getProperty(") && call.contains(ContentModel.PROP_HOMEFOLDER.toString())) {
+				reads++;
+			}
+		}
+		return reads;
+	}
+
+	@Test
+	public void shouldNotLookUpPreloadedPrincipals() throws Exception {
+		final Set<NodeRef> preloaded = new HashSet<NodeRef>();
+		for (int i = 0; i < 1200; i++) {
+			people.add("user" + i);
+			preloaded.add(personRef("user" + i));
+		}
+		personService.answer("getAllPeople", preloaded);
+		nodeService.answer("exists", Boolean.TRUE);
+
+		facade.loadKnownPrincipals();
+
+		assertEquals(4, transactions.getCommitCount());
+		assertTrue(transactions.getTransactions().get(3).isReadOnly());
+		assertTrue(facade.existUser("user0"));
+		assertTrue(facade.existUser("user1199"));
+		assertEquals(0, personService.getCallCount("personExists"));
+		assertFalse(facade.existUser("unknown"));
+		assertEquals(1, personService.getCallCount("personExists"));
+	}
+
+	@Test
+	public void shouldRecoverFromWronglyKnownPrincipal() throws Exception {
+		Set<NodeRef> preloaded = new HashSet<NodeRef>();
+		preloaded.add(personRef(PRINCIPAL));
+		personService.answer("getAllPeople", preloaded);
+		nodeService.answer("exists", Boolean.TRUE);
+		facade.loadKnownPrincipals();
+
+		MockHttpSession session = provision(PRINCIPAL, "RH");
+
+		assertEquals(PRINCIPAL, userOf(session));
+		assertEquals(1, personService.getCallCount("createPerson"));
+		assertEquals(1, transactions.getRollbackCount());
+	}
+
+	@Test
+	public void shouldSynchronizeGroupsInlineWhenQueueIsFull() throws Exception {
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		authorityService.answer("getAuthoritiesForUser", new MockService.Answer() {
+			public Object answer(Object[] args) throws Throwable {
+				if (args[0].equals("blocker")) {
+					blocked.countDown();
+					release.await();
+				}
+				return new HashSet<String>();
+			}
+		});
+		facade.enableAsynchronousGroupSync(1, 10);
+		try {
+			facade.createOrUpdateGroups("blocker", Arrays.asList("RH"));
+			assertTrue(blocked.await(5, TimeUnit.SECONDS));
+			facade.createOrUpdateGroups("queued", Arrays.asList("RH"));
+
+			facade.createOrUpdateGroups(PRINCIPAL, Arrays.asList("RH"));
+
+			assertTrue(memberships.contains("GROUP_RH/" + PRINCIPAL));
+			assertTrue(facade.isGroupsSynchronized(PRINCIPAL, Arrays.asList("RH")));
+			assertFalse(memberships.contains("GROUP_RH/queued"));
+		} finally {
+			release.countDown();
+			facade.shutdown();
+		}
+		assertTrue(memberships.contains("GROUP_RH/queued"));
+	}
+}
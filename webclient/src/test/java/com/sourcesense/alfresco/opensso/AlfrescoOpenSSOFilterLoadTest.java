@@ -0,0 +1,351 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.opensso;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mortbay.jetty.servlet.FilterHolder;
+import org.mortbay.jetty.testing.ServletTester;
+
+import com.iplanet.sso.SSOToken;
+
+/**
+ * Load harness for the filter chain running in an embedded Jetty, over a
+ * loopback socket so that requests are really concurrent. OpenSSO and
+ * Alfresco are mocked, so it runs offline. Run with <code>mvn -Pload test</code>
+ * and tune with the system properties:
+ * <ul>
+ * <li>load.threads: concurrent clients (default 8)</li>
+ * <li>load.duration: measured seconds (default 10), after load.warmup
+ * seconds (default 3)</li>
+ * <li>load.mix: percentages of guest, returning and first login requests
+ * (default 20,70,10)</li>
+ * <li>load.latency: milliseconds of each mocked OpenSSO call (default 5)</li>
+ * <li>load.returningUsers: returning users per thread (default 50)</li>
+ * </ul>
+ * 
+ * @author g.fernandes@sourcesense.com
+ * 
+ */
+public class AlfrescoOpenSSOFilterLoadTest {
+
+	private static final String CONTEXT_PATH = "/alfresco";
+	private static final String SSO_COOKIE = OpenSSOClient.DEFAULT_COOKIE_NAME;
+	private static final String SESSION_COOKIE = "JSESSIONID";
+
+	private static final int GUEST = 0;
+	private static final int RETURNING = 1;
+	private static final int FIRST_LOGIN = 2;
+	private static final String[] KINDS = { "guest", "returning", "first login" };
+
+	private final int threads = Integer.getInteger("load.threads", 8);
+	private final int warmupSeconds = Integer.getInteger("load.warmup", 3);
+	private final int durationSeconds = Integer.getInteger("load.duration", 10);
+	private final int latencyMillis = Integer.getInteger("load.latency", 5);
+	private final int returningUsers = Integer.getInteger("load.returningUsers", 50);
+	private final int[] mix = parseMix(System.getProperty("load.mix", "20,70,10"));
+
+	private ServletTester tester;
+	private String baseURL;
+	private final AtomicInteger errors = new AtomicInteger();
+
+	@Before
+	public void setUp() throws Exception {
+		tester = new ServletTester();
+		tester.setContextPath(CONTEXT_PATH);
+		tester.addServlet(SimpleServlet.class, "/");
+		FilterHolder filterHolder = tester.addFilter(AlfrescoOpenSSOFilter.class, "/*", 1);
+		baseURL = tester.createSocketConnector(true);
+		tester.start();
+
+		AlfrescoOpenSSOFilter alfrescoFilter = (AlfrescoOpenSSOFilter) filterHolder.getFilter();
+		alfrescoFilter.setAlfrescoFacade(new MockAlfrescoFacade());
+		alfrescoFilter.setOpenSSOClient(new LatencyOpenSSOClient(latencyMillis));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		tester.stop();
+	}
+
+	@Test
+	public void shouldSustainConfiguredLoad() throws Exception {
+		final long warmupEnd = System.currentTimeMillis() + warmupSeconds * 1000L;
+		final long end = warmupEnd + durationSeconds * 1000L;
+		final CountDownLatch done = new CountDownLatch(threads);
+		final List<Client> clients = new ArrayList<Client>();
+		for (int i = 0; i < threads; i++) {
+			final Client client = new Client(i);
+			clients.add(client);
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					try {
+						client.run(warmupEnd, end);
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "load-client-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		done.await();
+		report(clients);
+		assertEquals(0, errors.get());
+	}
+
+	private void report(List<Client> clients) {
+		System.out.println("Filter load: " + threads + " threads, " + durationSeconds + "s, mix guest/returning/first login " + mix[GUEST] + "/"
+				+ mix[RETURNING] + "/" + mix[FIRST_LOGIN] + ", OpenSSO latency " + latencyMillis + "ms");
+		long total = 0;
+		for (int kind = 0; kind < KINDS.length; kind++) {
+			LatencyRecorder merged = new LatencyRecorder();
+			for (Client client : clients) {
+				merged.addAll(client.latencies[kind]);
+			}
+			total += merged.count();
+			if (merged.count() > 0) {
+				System.out.println(merged.summary(KINDS[kind], durationSeconds));
+			}
+		}
+		System.out.println(String.format("  total: %.1f req/s, %d errors", (double) total / durationSeconds, errors.get()));
+	}
+
+	/**
+	 * A simulated browser user population, driven by one thread
+	 */
+	private class Client {
+
+		private final int id;
+		private final Random random;
+		private final String[] returningSessions;
+		private final LatencyRecorder[] latencies = { new LatencyRecorder(), new LatencyRecorder(), new LatencyRecorder() };
+		private int firstLogins;
+
+		Client(int id) {
+			this.id = id;
+			this.random = new Random(id);
+			this.returningSessions = new String[returningUsers];
+		}
+
+		void run(long warmupEnd, long end) {
+			long now;
+			while ((now = System.currentTimeMillis()) < end) {
+				int kind = nextKind();
+				long start = System.nanoTime();
+				try {
+					execute(kind);
+				} catch (IOException e) {
+					errors.incrementAndGet();
+				}
+				if (now >= warmupEnd) {
+					latencies[kind].record(System.nanoTime() - start);
+				}
+			}
+		}
+
+		private int nextKind() {
+			int dice = random.nextInt(100);
+			if (dice < mix[GUEST]) {
+				return GUEST;
+			}
+			return dice < mix[GUEST] + mix[RETURNING] ? RETURNING : FIRST_LOGIN;
+		}
+
+		private void execute(int kind) throws IOException {
+			if (kind == GUEST) {
+				get(null, null);
+			} else if (kind == RETURNING) {
+				int user = random.nextInt(returningUsers);
+				String session = get("returning-" + id + "-" + user, returningSessions[user]);
+				if (session != null) {
+					returningSessions[user] = session;
+				}
+			} else {
+				get("new-" + id + "-" + firstLogins++, null);
+			}
+		}
+
+		/**
+		 * @return the new session cookie, if one was set
+		 */
+		private String get(String user, String session) throws IOException {
+			HttpURLConnection connection = (HttpURLConnection) new URL(baseURL + CONTEXT_PATH + "/").openConnection();
+			connection.setInstanceFollowRedirects(false);
+			StringBuilder cookies = new StringBuilder();
+			if (user != null) {
+				cookies.append(SSO_COOKIE).append('=').append(user);
+			}
+			if (session != null) {
+				cookies.append("; ").append(session);
+			}
+			if (cookies.length() > 0) {
+				connection.setRequestProperty("Cookie", cookies.toString());
+			}
+			int status = connection.getResponseCode();
+			InputStream content = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+			if (content != null) {
+				byte[] buffer = new byte[1024];
+				while (content.read(buffer) >= 0) {
+				}
+				content.close();
+			}
+			if (status != HttpURLConnection.HTTP_OK) {
+				errors.incrementAndGet();
+			}
+			String setCookie = connection.getHeaderField("Set-Cookie");
+			if (setCookie != null && setCookie.startsWith(SESSION_COOKIE)) {
+				return setCookie.split(";")[0];
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * OpenSSO client taking the user name from the SSO cookie, with a fixed
+	 * latency on every remote call
+	 */
+	static class LatencyOpenSSOClient extends OpenSSOClient {
+
+		private final long latencyMillis;
+		private final List<String> groups = Arrays.asList("RH", "marketing", "administration");
+
+		LatencyOpenSSOClient(long latencyMillis) {
+			this.latencyMillis = latencyMillis;
+		}
+
+		@Override
+		public SSOToken createTokenFrom(HttpServletRequest request) {
+			String user = getSessionCookie(request);
+			if (user == null) {
+				return null;
+			}
+			pause();
+			return (SSOToken) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { SSOToken.class }, new TokenHandler(user));
+		}
+
+		@Override
+		public String getPrincipal(SSOToken token) {
+			return ((TokenHandler) Proxy.getInvocationHandler(token)).user;
+		}
+
+		@Override
+		public String getTokenId(SSOToken token) {
+			return "token-".concat(getPrincipal(token));
+		}
+
+		@Override
+		public OpenSSOIdentity getIdentity(SSOToken token) {
+			pause();
+			HashMap<String, String> attributes = new HashMap<String, String>();
+			attributes.put(ATTR_EMAIL, "attributeValue");
+			attributes.put(ATTR_FULL_NAME, "attributeValue");
+			attributes.put(ATTR_LAST_NAME, "attributeValue");
+			return new OpenSSOIdentity(getPrincipal(token), attributes, groups);
+		}
+
+		private void pause() {
+			if (latencyMillis > 0) {
+				try {
+					Thread.sleep(latencyMillis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	private static class TokenHandler implements InvocationHandler {
+
+		final String user;
+
+		TokenHandler(String user) {
+			this.user = user;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			return null;
+		}
+	}
+
+	/**
+	 * Latencies of one thread, in nanoseconds
+	 */
+	private static class LatencyRecorder {
+
+		private long[] values = new long[1024];
+		private int count;
+
+		void record(long nanos) {
+			if (count == values.length) {
+				values = Arrays.copyOf(values, count * 2);
+			}
+			values[count++] = nanos;
+		}
+
+		void addAll(LatencyRecorder other) {
+			for (int i = 0; i < other.count; i++) {
+				record(other.values[i]);
+			}
+		}
+
+		int count() {
+			return count;
+		}
+
+		String summary(String name, int seconds) {
+			long[] sorted = Arrays.copyOf(values, count);
+			Arrays.sort(sorted);
+			return String.format("  %s: %d requests, %.1f req/s, p50 %.2fms, p95 %.2fms, p99 %.2fms, p999 %.2fms", name, count, (double) count
+					/ seconds, millis(sorted, 0.50), millis(sorted, 0.95), millis(sorted, 0.99), millis(sorted, 0.999));
+		}
+
+		private static double millis(long[] sorted, double percentile) {
+			int index = (int) Math.ceil(percentile * sorted.length) - 1;
+			return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1000000.0;
+		}
+	}
+
+	private static int[] parseMix(String value) {
+		String[] parts = value.split(",");
+		int[] percentages = new int[KINDS.length];
+		for (int i = 0; i < percentages.length && i < parts.length; i++) {
+			percentages[i] = Integer.parseInt(parts[i].trim());
+		}
+		return percentages;
+	}
+}
@@ -18,18 +18,18 @@ package com.sourcesense.alfresco.opensso;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
 
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.HttpSession;
 
-import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.web.app.servlet.AuthenticationHelper;
 import org.alfresco.web.bean.repository.User;
 import org.junit.After;
 import org.junit.Before;
@@ -37,9 +37,14 @@ import org.junit.Test;
 import org.mortbay.jetty.servlet.FilterHolder;
 import org.mortbay.jetty.testing.HttpTester;
 import org.mortbay.jetty.testing.ServletTester;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockFilterConfig;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.mock.web.MockServletContext;
 import org.springframework.web.context.WebApplicationContext;
-import org.springframework.web.context.support.GenericWebApplicationContext;
+
+import com.iplanet.sso.SSOTokenManager;
 
 public class AlfrescoOpenSSOFilterTest {
 
@@ -52,6 +57,7 @@ public class AlfrescoOpenSSOFilterTest {
 
 	private ServletTester tester = new ServletTester();
 	private AlfrescoOpenSSOFilter alfrescoFilter;
+	private MockAlfrescoFacade alfrescoFacade;
 
 	@Before
 	public void setUp() throws Exception {
@@ -64,7 +70,8 @@ public class AlfrescoOpenSSOFilterTest {
 		tester.start();
 
 		alfrescoFilter = (AlfrescoOpenSSOFilter) filterHolder.getFilter();
-		alfrescoFilter.setAlfrescoFacade(mockAlfrescoFacade());
+		alfrescoFacade = new MockAlfrescoFacade();
+		alfrescoFilter.setAlfrescoFacade(alfrescoFacade);
 		alfrescoFilter.setOpenSSOClient(new MockOpenSSOClient(USERNAME));
 		
 		
@@ -160,12 +167,77 @@ public class AlfrescoOpenSSOFilterTest {
 		
 	}
 	
+	@Test
+	public void shouldReuseAuthenticatedSession() throws Exception {
+		authenticate();
+		HttpTester response = doRequest(ALFRESCO_URL);
+		String sessionCookie = response.getHeader("Set-Cookie").split(";")[0];
+		assertEquals(1, alfrescoFacade.getAuthenticatedUserCount());
+		
+		response = doRequest(ALFRESCO_URL, sessionCookie);
+		assertEquals(HTTP_CODE_OK, response.getStatus());
+		assertEquals(1, alfrescoFacade.getAuthenticatedUserCount());
+		
+		doRequest(ALFRESCO_URL);
+		assertEquals(2, alfrescoFacade.getAuthenticatedUserCount());
+	}
+	
 	@Test
 	public void shouldLoginAsGuest() throws Exception {
 		HttpTester response = doRequest(ALFRESCO_URL);
 		assertEquals(HTTP_CODE_OK, response.getStatus());
 	}
 	
+	@Test
+	public void shouldNotCreateSessionForGuestRequest() throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/alfresco/faces/jsp/browse/browse.jsp");
+		MockFilterChain chain = new MockFilterChain();
+
+		alfrescoFilter.doFilter(request, new MockHttpServletResponse(), chain);
+
+		assertNotNull(chain.getRequest());
+		assertNull(request.getSession(false));
+		assertNull(((HttpServletRequest) chain.getRequest()).getSession(false));
+	}
+
+	@Test
+	public void shouldCreateGuestSessionOnlyWhenNeeded() throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/alfresco/faces/jsp/browse/browse.jsp");
+
+		alfrescoFilter.doFilter(request, new MockHttpServletResponse(), new FilterChain() {
+			public void doFilter(ServletRequest request, ServletResponse response) {
+				((HttpServletRequest) request).getSession();
+			}
+		});
+
+		User user = (User) request.getSession(false).getAttribute(AuthenticationHelper.AUTHENTICATION_USER);
+		assertEquals("guest", user.getUserName());
+	}
+
+	@Test
+	public void shouldInitWhenWarmUpFails() throws Exception {
+		MockServletContext servletContext = new MockServletContext();
+		servletContext.setAttribute(WebApplicationContext.ROOT_WEB_APPLICATION_CONTEXT_ATTRIBUTE, new MockAlfrescoApplicationContext());
+		MockFilterConfig config = new MockFilterConfig(servletContext);
+		config.addInitParameter(AlfrescoOpenSSOFilter.PARAM_WARM_UP, "true");
+		AlfrescoOpenSSOFilter filter = new AlfrescoOpenSSOFilter();
+		filter.setAlfrescoFacade(new MockAlfrescoFacade());
+		filter.setOpenSSOClient(new MockOpenSSOClient(USERNAME));
+		SSOTokenManager tokenManager = OpenSSOClient.tokenManager;
+		// the SDK could not be bootstrapped, as when OpenSSO is unreachable
+		OpenSSOClient.tokenManager = null;
+		try {
+			filter.init(config);
+		} finally {
+			OpenSSOClient.tokenManager = tokenManager;
+		}
+
+		MockFilterChain chain = new MockFilterChain();
+		filter.doFilter(new MockHttpServletRequest("GET", "/alfresco/faces/jsp/browse/browse.jsp"), new MockHttpServletResponse(), chain);
+		assertNotNull(chain.getRequest());
+		filter.destroy();
+	}
+
 	private HttpTester authenticate() throws IOException, Exception {
 		HttpTester response = new HttpTester();
 		HttpTester request = new HttpTester();
@@ -186,68 +258,21 @@ public class AlfrescoOpenSSOFilterTest {
 	}
 
 	private HttpTester doRequest(String URI) throws IOException, Exception {
+		return doRequest(URI, null);
+	}
+
+	private HttpTester doRequest(String URI, String cookie) throws IOException, Exception {
 		HttpTester request = new HttpTester();
 		HttpTester response = new HttpTester();
 		request.setMethod("GET");
 		request.setHeader("Host", "localhost");
+		if (cookie != null) {
+			request.setHeader("Cookie", cookie);
+		}
 		request.setURI(URI);
 		request.setVersion("HTTP/1.1");
 		String responses = tester.getResponses(request.generate());
 		response.parse(responses);
 		return response;
 	}
-	
-	
-	
-
-	private AlfrescoFacade mockAlfrescoFacade() {
-		GenericWebApplicationContext webApplicationContext = new MockAlfrescoApplicationContext();
-		MockServletContext mockServletContext = new MockServletContext();
-		mockServletContext.setAttribute(WebApplicationContext.ROOT_WEB_APPLICATION_CONTEXT_ATTRIBUTE, webApplicationContext);
-		AlfrescoFacade mockAlfrescoFacade = new AlfrescoFacade(mockServletContext){
-			public ArrayList<String> users = new ArrayList<String>();
-			public HashMap<String, List<String>> groups = new HashMap<String, List<String>>();
-			
-			@Override
-			public void createUser(String username, String email, String firstName, String lastName) {
-				users.add(username);
-			}
-			
-			@Override
-			public Boolean existUser(String username) {
-				return users.contains(username);
-			}
-			
-			public ArrayList<String> getUserGroups(String username) {
-				return (ArrayList<String>) groups.get(username);
-			}
-			
-			@Override
-			protected void setLocale(HttpSession session) {
-				// TODO Auto-generated method stub
-			}
-			
-			@Override
-			public void createOrUpdateGroups(String principal, List<String> openSSOGroups) {
-				groups.remove(principal);
-				groups.put(principal, openSSOGroups);
-			}
-			
-			
-			@Override
-			protected void setAuthenticatedUser(HttpServletRequest req, HttpServletResponse res, HttpSession httpSess, String userName) {
-				NodeRef nodeRef = new NodeRef("workspace://SpacesStore/386f7ece-4127-42b5-8543-3de2e2a20d7e");
-				User user = new User(userName,"ticket", nodeRef);
-				populateSession(httpSess, user);
-			}
-			
-			
-			@Override
-			public void authenticateAsGuest(HttpSession session) {
-			}
-		
-		};
-		
-		return mockAlfrescoFacade;
-	}
 }
@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.opensso;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncGroupSynchronizerTest {
+
+	private static final String BLOCKER = "blocker";
+
+	private RecordingFacade facade;
+	private AsyncGroupSynchronizer synchronizer;
+
+	@Before
+	public void setUp() throws Exception {
+		facade = new RecordingFacade();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		facade.release.countDown();
+		if (synchronizer != null) {
+			synchronizer.shutdown();
+		}
+	}
+
+	/**
+	 * Starts a synchronizer whose worker is held applying a first update, so
+	 * that the next ones wait in the queue
+	 */
+	private void startBlocked(int capacity, int batchSize) throws InterruptedException {
+		synchronizer = new AsyncGroupSynchronizer(facade, capacity, batchSize);
+		assertTrue(synchronizer.submit(BLOCKER, groups("x")));
+		assertTrue(facade.blocked.await(5, TimeUnit.SECONDS));
+	}
+
+	private static List<String> groups(String... groups) {
+		return Arrays.asList(groups);
+	}
+
+	@Test
+	public void shouldMergeUpdatesOfSamePrincipal() throws Exception {
+		startBlocked(10, 10);
+		assertTrue(synchronizer.submit("alice", groups("RH")));
+		assertTrue(synchronizer.submit("bob", groups("sales")));
+		assertTrue(synchronizer.submit("alice", groups("RH", "marketing")));
+		assertEquals(2, synchronizer.getQueueDepth());
+
+		facade.release.countDown();
+		synchronizer.shutdown();
+
+		assertEquals(2, facade.batches.size());
+		Map<String, List<String>> batch = facade.batches.get(1);
+		assertEquals(2, batch.size());
+		assertEquals(groups("RH", "marketing"), batch.get("alice"));
+		assertEquals(groups("sales"), batch.get("bob"));
+	}
+
+	@Test
+	public void shouldRetryFailedBatchOneByOne() throws Exception {
+		facade.failing.add("bob");
+		startBlocked(10, 10);
+		synchronizer.submit("alice", groups("RH"));
+		synchronizer.submit("bob", groups("sales"));
+		synchronizer.submit("carol", groups("RH"));
+
+		facade.release.countDown();
+		synchronizer.shutdown();
+
+		assertEquals(5, facade.batches.size());
+		assertEquals(3, facade.batches.get(1).size());
+		Set<String> retried = new HashSet<String>();
+		for (Map<String, List<String>> batch : facade.batches.subList(2, 5)) {
+			assertEquals(1, batch.size());
+			retried.addAll(batch.keySet());
+		}
+		assertEquals(new HashSet<String>(groups("alice", "bob", "carol")), retried);
+		assertEquals(Collections.singleton("bob"), facade.invalidated);
+	}
+
+	@Test
+	public void shouldRejectUpdatesWhenQueueIsFull() throws Exception {
+		startBlocked(1, 10);
+		assertTrue(synchronizer.submit("alice", groups("RH")));
+		assertTrue(synchronizer.submit("alice", groups("sales")));
+		assertFalse(synchronizer.submit("bob", groups("RH")));
+
+		facade.release.countDown();
+		synchronizer.shutdown();
+
+		assertEquals(2, facade.batches.size());
+		assertFalse(facade.batches.get(1).containsKey("bob"));
+	}
+
+	@Test
+	public void shouldDrainQueueOnShutdown() throws Exception {
+		startBlocked(100, 2);
+		for (int i = 0; i < 5; i++) {
+			synchronizer.submit("user" + i, groups("RH"));
+		}
+
+		facade.release.countDown();
+		synchronizer.shutdown();
+
+		assertEquals(0, synchronizer.getQueueDepth());
+		Set<String> applied = new HashSet<String>();
+		for (Map<String, List<String>> batch : facade.batches) {
+			assertTrue(batch.size() <= 2);
+			applied.addAll(batch.keySet());
+		}
+		assertEquals(6, applied.size());
+		assertFalse(synchronizer.submit("late", groups("RH")));
+	}
+
+	/**
+	 * Records the batches applied by the worker, holding it on the first one
+	 * until released
+	 */
+	private static class RecordingFacade extends MockAlfrescoFacade {
+
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<Map<String, List<String>>> batches = Collections.synchronizedList(new ArrayList<Map<String, List<String>>>());
+		final Set<String> failing = Collections.synchronizedSet(new HashSet<String>());
+		final Set<String> invalidated = Collections.synchronizedSet(new HashSet<String>());
+
+		@Override
+		protected void synchronizeGroups(Map<String, List<String>> groupsByPrincipal) {
+			batches.add(new HashMap<String, List<String>>(groupsByPrincipal));
+			if (groupsByPrincipal.containsKey(BLOCKER)) {
+				blocked.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			for (String principal : groupsByPrincipal.keySet()) {
+				if (failing.contains(principal)) {
+					throw new IllegalStateException("Cannot synchronize " + principal);
+				}
+			}
+		}
+
+		@Override
+		public void invalidateGroups(String principal) {
+			invalidated.add(principal);
+		}
+	}
+}
@@ -22,6 +22,7 @@ import java.lang.reflect.Proxy;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.alfresco.repo.policy.PolicyComponent;
 import org.alfresco.repo.security.authentication.AuthenticationComponent;
 import org.alfresco.repo.security.authentication.TicketComponent;
 import org.alfresco.service.ServiceRegistry;
@@ -41,6 +42,7 @@ import org.springframework.web.context.support.GenericWebApplicationContext;
 public class MockAlfrescoApplicationContext extends GenericWebApplicationContext {
 	
 	private Map<String, Class> beans = new HashMap<String, Class>();
+	private Map<Class, Object> services = new HashMap<Class, Object>();
 
 	{
 		beans.put("ServiceRegistry", ServiceRegistry.class);
@@ -51,21 +53,53 @@ public class MockAlfrescoApplicationContext extends GenericWebApplicationContext
 		beans.put("authenticationService", AuthenticationService.class);
 		beans.put("authorityService", AuthorityService.class);
 		beans.put("ticketComponent", TicketComponent.class);
+		beans.put("policyComponent", PolicyComponent.class);
+	}
+
+	/**
+	 * Returns the given implementation instead of a proxy wherever a bean, or
+	 * a nested mock, of that interface is requested
+	 */
+	public MockAlfrescoApplicationContext register(Class type, Object service) {
+		services.put(type, service);
+		return this;
 	}
 
 	@Override
 	public  Object getBean(String name) throws BeansException {
 		try {
-			Class clazz = beans.get(name);
-			Object newProxyInstance = Proxy.newProxyInstance(getClassLoader(), new Class[] { clazz }, new InvocationHandler() {
-				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-					return null;
-				}
-			});
-			return newProxyInstance;
+			return mockFor(beans.get(name));
 		} catch (IllegalArgumentException e) {
 			e.printStackTrace();
 		}
 		return null;
 	}
+
+	/**
+	 * Proxy returning nested mocks for Alfresco and transaction interfaces,
+	 * default values for primitives and null otherwise
+	 */
+	private Object mockFor(Class clazz) {
+		if (services.containsKey(clazz)) {
+			return services.get(clazz);
+		}
+		return Proxy.newProxyInstance(getClassLoader(), new Class[] { clazz }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				Class returnType = method.getReturnType();
+				if (returnType.isInterface() && (returnType.getName().startsWith("org.alfresco") || returnType.getName().startsWith("javax.transaction"))) {
+					return mockFor(returnType);
+				}
+				if (returnType == Boolean.TYPE) {
+					return Boolean.FALSE;
+				}
+				if (returnType == Integer.TYPE) {
+					return 0;
+				}
+				if (returnType == Long.TYPE) {
+					return 0L;
+				}
+				return null;
+			}
+		});
+	}
 }
@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.opensso;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.web.bean.repository.User;
+import org.springframework.mock.web.MockServletContext;
+import org.springframework.web.context.WebApplicationContext;
+
+/**
+ * AlfrescoFacade keeping users and groups in memory, backed by the proxied
+ * beans of {@link MockAlfrescoApplicationContext}. Safe for concurrent use.
+ * 
+ * @author g.fernandes@sourcesense.com
+ * 
+ */
+public class MockAlfrescoFacade extends AlfrescoFacade {
+
+	private static final NodeRef PERSON_REF = new NodeRef("workspace://SpacesStore/386f7ece-4127-42b5-8543-3de2e2a20d7e");
+
+	private final ConcurrentHashMap<String, Boolean> users = new ConcurrentHashMap<String, Boolean>();
+	private final ConcurrentHashMap<String, ArrayList<String>> groups = new ConcurrentHashMap<String, ArrayList<String>>();
+	private final AtomicInteger authenticatedUserCount = new AtomicInteger();
+
+	public MockAlfrescoFacade() {
+		super(mockServletContext());
+	}
+
+	private static ServletContext mockServletContext() {
+		MockServletContext mockServletContext = new MockServletContext();
+		mockServletContext.setAttribute(WebApplicationContext.ROOT_WEB_APPLICATION_CONTEXT_ATTRIBUTE, new MockAlfrescoApplicationContext());
+		return mockServletContext;
+	}
+
+	@Override
+	public void createUser(String username, String email, String firstName, String lastName) {
+		users.put(username, Boolean.TRUE);
+	}
+
+	@Override
+	public Boolean existUser(String username) {
+		return users.containsKey(username);
+	}
+
+	@Override
+	public ArrayList<String> getUserGroups(String username) {
+		return groups.get(username);
+	}
+
+	@Override
+	protected void setLocale(HttpSession session) {
+	}
+
+	@Override
+	public void createOrUpdateGroups(String principal, List<String> openSSOGroups) {
+		groups.put(principal, new ArrayList<String>(openSSOGroups));
+	}
+
+	@Override
+	protected void setAuthenticatedUser(HttpServletRequest req, HttpServletResponse res, HttpSession httpSess, String userName) {
+		User user = new User(userName, "ticket", PERSON_REF);
+		populateSession(httpSess, user);
+		authenticatedUserCount.incrementAndGet();
+	}
+
+	@Override
+	public void authenticateAsGuest(HttpSession session) {
+	}
+
+	@Override
+	public User authenticateAsGuest() {
+		return new User("guest", "ticket", PERSON_REF);
+	}
+
+	/**
+	 * @return number of times a session was populated with an authenticated
+	 *         user
+	 */
+	public int getAuthenticatedUserCount() {
+		return authenticatedUserCount.get();
+	}
+}
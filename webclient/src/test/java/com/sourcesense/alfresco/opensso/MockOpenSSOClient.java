@@ -19,6 +19,7 @@ package com.sourcesense.alfresco.opensso;
 import static org.easymock.classextension.EasyMock.createMock;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
@@ -51,6 +52,11 @@ public class MockOpenSSOClient extends OpenSSOClient {
 		this.setGroups(groups);
 	}
 
+	@Override
+	public boolean hasSessionCookie(HttpServletRequest request) {
+		return !tokenInvalid;
+	}
+
 	@Override
 	public synchronized SSOToken createTokenFrom(HttpServletRequest request) {
 		if (tokenInvalid) {
@@ -60,6 +66,11 @@ public class MockOpenSSOClient extends OpenSSOClient {
 		return token;
 	}
 
+	@Override
+	public String getTokenId(SSOToken token) {
+		return "token-".concat(getUsername());
+	}
+
 	@Override
 	public String getPrincipal(SSOToken token) {
 		return getUsername();
@@ -70,6 +81,15 @@ public class MockOpenSSOClient extends OpenSSOClient {
 		return "attributeValue";
 	}
 
+	@Override
+	public OpenSSOIdentity getIdentity(SSOToken token) {
+		HashMap<String, String> attributes = new HashMap<String, String>();
+		attributes.put(ATTR_EMAIL, "attributeValue");
+		attributes.put(ATTR_FULL_NAME, "attributeValue");
+		attributes.put(ATTR_LAST_NAME, "attributeValue");
+		return new OpenSSOIdentity(getUsername(), attributes, groups);
+	}
+
 	@Override
 	public List<String> getGroups(SSOToken token) {
 		return groups;
@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.opensso;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Proxy of a service interface recording its calls and answering them from
+ * canned values, default values for primitives and null otherwise. Safe for
+ * concurrent use.
+ * 
+ * @author g.fernandes@sourcesense.com
+ * 
+ */
+public class MockService implements InvocationHandler {
+
+	/**
+	 * Computes the result of a call
+	 */
+	public interface Answer {
+		Object answer(Object[] args) throws Throwable;
+	}
+
+	private final Map<String, Answer> answers = new ConcurrentHashMap<String, Answer>();
+	private final List<String> calls = new ArrayList<String>();
+
+	@SuppressWarnings("unchecked")
+	public <T> T proxy(Class<T> type) {
+		return (T) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { type }, this);
+	}
+
+	public MockService answer(String method, final Object value) {
+		return answer(method, new Answer() {
+			public Object answer(Object[] args) {
+				return value;
+			}
+		});
+	}
+
+	public MockService answer(String method, Answer answer) {
+		answers.put(method, answer);
+		return this;
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if (method.getDeclaringClass() == Object.class) {
+			if (method.getName().equals("equals")) {
+				return proxy == args[0];
+			}
+			return method.getName().equals("hashCode") ? System.identityHashCode(proxy) : toString();
+		}
+		synchronized (calls) {
+			calls.add(method.getName() + (args == null ? "()" : Arrays.asList(args).toString().replace('[', '(').replace(']', ')')));
+		}
+		Answer answer = answers.get(method.getName());
+		if (answer != null) {
+			return answer.answer(args);
+		}
+		Class<?> returnType = method.getReturnType();
+		if (returnType == Boolean.TYPE) {
+			return Boolean.FALSE;
+		}
+		if (returnType == Integer.TYPE) {
+			return 0;
+		}
+		if (returnType == Long.TYPE) {
+			return 0L;
+		}
+		return null;
+	}
+
+	/**
+	 * @return calls made so far, such as <code>addAuthority(GROUP_RH, bob)</code>
+	 */
+	public List<String> getCalls() {
+		synchronized (calls) {
+			return new ArrayList<String>(calls);
+		}
+	}
+
+	public int getCallCount(String method) {
+		int count = 0;
+		for (String call : getCalls()) {
+			if (call.startsWith(method.concat("("))) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public void reset() {
+		synchronized (calls) {
+			calls.clear();
+		}
+	}
+}
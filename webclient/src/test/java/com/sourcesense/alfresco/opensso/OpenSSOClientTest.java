@@ -19,14 +19,24 @@ package com.sourcesense.alfresco.opensso;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import com.iplanet.am.util.SystemProperties;
+import com.iplanet.sso.SSOToken;
+import com.sourcesense.alfresco.cluster.NullInvalidationBus;
+import com.sourcesense.alfresco.cluster.TcpInvalidationBus;
 
 
 public class OpenSSOClientTest {
@@ -66,4 +76,135 @@ public class OpenSSOClientTest {
 		assertEquals("http://sample.com/ctx/UI/Login", loginURL);
 	}
 
+	@Test
+	public void shouldListenToTokenOnceAcrossValidations() throws Exception {
+		ValidOpenSSOClient client = new ValidOpenSSOClient();
+		ListenerCountingHandler handler = new ListenerCountingHandler();
+		SSOToken token = handler.newToken();
+
+		assertTrue(client.isValid(token));
+		client.invalidateToken(client.getTokenId(token));
+		assertTrue(client.isValid(token));
+
+		assertEquals(2, client.validations);
+		assertEquals(1, handler.listeners);
+	}
+
+	@Test
+	public void shouldListenAgainOnceTheTokenIsRevoked() throws Exception {
+		ValidOpenSSOClient client = new ValidOpenSSOClient();
+		ListenerCountingHandler handler = new ListenerCountingHandler();
+		SSOToken token = handler.newToken();
+
+		assertTrue(client.isValid(token));
+		client.revokeToken(client.getTokenId(token));
+		assertTrue(client.isValid(token));
+
+		assertEquals(2, handler.listeners);
+	}
+
+	@Test
+	public void shouldInvalidateLocallyWithoutPeers() throws Exception {
+		ClusterOpenSSOClient client = new ClusterOpenSSOClient();
+		client.properties.put(OpenSSOClient.CLUSTER_SECRET_PROPERTY, "0123456789abcdef0123");
+
+		client.joinCluster(0);
+
+		assertTrue(client.getInvalidationBus() instanceof NullInvalidationBus);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRequireBindAddressWithPeers() throws Exception {
+		ClusterOpenSSOClient client = new ClusterOpenSSOClient();
+		client.properties.put(OpenSSOClient.CLUSTER_SECRET_PROPERTY, "0123456789abcdef0123");
+		client.properties.put(OpenSSOClient.CLUSTER_PEERS_PROPERTY, "127.0.0.2");
+
+		client.joinCluster(0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRequireSecretWithPeers() throws Exception {
+		ClusterOpenSSOClient client = new ClusterOpenSSOClient();
+		client.properties.put(OpenSSOClient.CLUSTER_BIND_PROPERTY, "127.0.0.1");
+		client.properties.put(OpenSSOClient.CLUSTER_PEERS_PROPERTY, "127.0.0.2");
+
+		client.joinCluster(0);
+	}
+
+	@Test
+	public void shouldJoinPeersOnTheWebappPort() throws Exception {
+		ClusterOpenSSOClient client = new ClusterOpenSSOClient();
+		client.properties.put(OpenSSOClient.CLUSTER_SECRET_PROPERTY, "0123456789abcdef0123");
+		client.properties.put(OpenSSOClient.CLUSTER_BIND_PROPERTY, "127.0.0.1");
+		client.properties.put(OpenSSOClient.CLUSTER_PEERS_PROPERTY, "127.0.0.2");
+
+		client.joinCluster(0);
+		try {
+			assertTrue(client.getInvalidationBus() instanceof TcpInvalidationBus);
+		} finally {
+			client.shutdown();
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void shouldFailWhenTheClusterPortIsTaken() throws Exception {
+		ServerSocket taken = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		try {
+			ClusterOpenSSOClient client = new ClusterOpenSSOClient();
+			client.properties.put(OpenSSOClient.CLUSTER_SECRET_PROPERTY, "0123456789abcdef0123");
+			client.properties.put(OpenSSOClient.CLUSTER_BIND_PROPERTY, "127.0.0.1");
+			client.properties.put(OpenSSOClient.CLUSTER_PEERS_PROPERTY, "127.0.0.2");
+
+			client.joinCluster(taken.getLocalPort());
+		} finally {
+			taken.close();
+		}
+	}
+
+	private static class ClusterOpenSSOClient extends OpenSSOClient {
+
+		final Map<String, String> properties = new HashMap<String, String>();
+
+		@Override
+		protected String getClusterProperty(String name) {
+			return properties.get(name);
+		}
+	}
+
+	private static class ValidOpenSSOClient extends OpenSSOClient {
+
+		int validations;
+
+		@Override
+		protected boolean validateRemotely(SSOToken token) {
+			validations++;
+			return true;
+		}
+
+		@Override
+		public String getTokenId(SSOToken token) {
+			return "token-listened";
+		}
+	}
+
+	private static class ListenerCountingHandler implements InvocationHandler {
+
+		int listeners;
+
+		SSOToken newToken() {
+			return (SSOToken) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { SSOToken.class }, this);
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getName().equals("addSSOTokenListener")) {
+				listeners++;
+				return null;
+			}
+			if (method.getReturnType() == long.class) {
+				return Long.valueOf(60);
+			}
+			return null;
+		}
+	}
+
 }
@@ -0,0 +1,46 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.opensso;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+public class OpenSSONotificationServletTest {
+
+	@Test
+	public void shouldExtractSessionStatesFromNotificationSet() throws Exception {
+		String notification = "<NotificationSet vers=\"1.0\" svcid=\"session\" notid=\"12\">"
+				+ "<Notification><![CDATA[<SessionNotification vers=\"1.0\" notid=\"7\">"
+				+ "<Session sid=\"AQIC5wM2LY4Sfcz*AAJTSQACMDE.*\" stype=\"user\" state=\"destroyed\"></Session>"
+				+ "<Type>5</Type></SessionNotification>]]></Notification>"
+				+ "<Notification>&lt;SessionNotification&gt;&lt;Session sid=&quot;AQIC5wM2LY4Sfcy*AAJTSQACMDE.*&quot; state=&quot;inactive&quot;&gt;"
+				+ "</Notification></NotificationSet>";
+		Map<String, String> sessions = OpenSSONotificationServlet.extractSessions(notification);
+		assertEquals(2, sessions.size());
+		assertEquals("destroyed", sessions.get("AQIC5wM2LY4Sfcz*AAJTSQACMDE.*"));
+		assertEquals("inactive", sessions.get("AQIC5wM2LY4Sfcy*AAJTSQACMDE.*"));
+	}
+
+	@Test
+	public void shouldIgnoreOtherIdentifiers() throws Exception {
+		assertTrue(OpenSSONotificationServlet.extractSessions("<Session cid=\"x\" usid=\"y\"></Session>").isEmpty());
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.opensso;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import com.sourcesense.alfresco.opensso.RequestRouter.Route;
+
+public class RequestRouterTest {
+
+	private RequestRouter router;
+
+	@Before
+	public void setUp() throws Exception {
+		router = new RequestRouter(Route.GUEST);
+		router.addPatterns("/css/*, /images/* *.png", Route.BYPASS);
+		router.addPatterns("/faces/jsp/admin/*", Route.AUTHENTICATE);
+		router.addPatterns("/images/public/logo.gif", Route.GUEST);
+		router.addPatterns("/faces/skins/*.css /faces/skins/*.gif", Route.BYPASS);
+	}
+
+	@Test
+	public void shouldBypassStaticResources() throws Exception {
+		assertEquals(Route.BYPASS, router.route("/css/main.css"));
+		assertEquals(Route.BYPASS, router.route("/css"));
+		assertEquals(Route.BYPASS, router.route("/images/filetypes/doc.gif"));
+		assertEquals(Route.BYPASS, router.route("/faces/icons/folder.png"));
+	}
+
+	@Test
+	public void shouldPreferExactAndLongestPrefixMatches() throws Exception {
+		assertEquals(Route.GUEST, router.route("/images/public/logo.gif"));
+		assertEquals(Route.AUTHENTICATE, router.route("/faces/jsp/admin/users.jsp"));
+		assertEquals(Route.AUTHENTICATE, router.route("/faces/jsp/admin/chart.png"));
+	}
+
+	@Test
+	public void shouldLimitScopedSuffixesToTheirPrefix() throws Exception {
+		assertEquals(Route.BYPASS, router.route("/faces/skins/default/main.css"));
+		assertEquals(Route.BYPASS, router.route("/faces/skins/logo.gif"));
+		assertEquals(Route.GUEST, router.route("/faces/jsp/browse/main.css"));
+		assertEquals(Route.GUEST, router.route("/d/a/workspace/SpacesStore/1234/report.css"));
+		assertEquals(Route.GUEST, router.route("/faces/skins/index.jsp"));
+	}
+
+	@Test
+	public void shouldFallBackToDefaultRoute() throws Exception {
+		assertEquals(Route.GUEST, router.route("/faces/jsp/browse/browse.jsp"));
+		assertEquals(Route.GUEST, router.route("/cssfile"));
+		assertEquals(Route.GUEST, router.route("/png"));
+		assertEquals(Route.GUEST, router.route(""));
+	}
+
+	@Test
+	public void shouldRouteTheNormalizedServletPath() throws Exception {
+		assertEquals(Route.BYPASS, router.route(request("/css", "/main.css")));
+		assertEquals(Route.BYPASS, router.route(request("/images", "/./filetypes//doc.gif")));
+		assertEquals(Route.AUTHENTICATE, router.route(request("/faces", "/jsp/browse/../admin/users.jsp")));
+		assertEquals(Route.AUTHENTICATE, router.route(request("/faces", "/jsp/admin;jsessionid=1/users.jsp")));
+	}
+
+	@Test
+	public void shouldNotBypassDotSegments() throws Exception {
+		assertEquals(Route.AUTHENTICATE, router.route(request("/css", "/../faces/jsp/admin/users.jsp")));
+		assertEquals(Route.AUTHENTICATE, router.route(request("/css", "/%2e%2e/faces/jsp/admin/users.jsp")));
+		assertEquals(Route.AUTHENTICATE, router.route(request("/images", "/%2E%2E/%2e%2e/faces/jsp/admin/users.jsp")));
+		assertEquals(Route.GUEST, router.route(request("/faces", "/jsp/%2e%2e/%2e%2e/css/main.css")));
+		assertEquals(Route.GUEST, router.route(request("/faces", "/jsp/../../css/main.css")));
+	}
+
+	private static MockHttpServletRequest request(String servletPath, String pathInfo) {
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setContextPath("/alfresco");
+		request.setServletPath(servletPath);
+		request.setPathInfo(pathInfo);
+		return request;
+	}
+}
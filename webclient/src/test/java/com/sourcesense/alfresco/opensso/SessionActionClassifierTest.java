@@ -0,0 +1,41 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.opensso;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.sourcesense.alfresco.opensso.SessionActionClassifier.Action;
+
+public class SessionActionClassifierTest {
+
+	@Test
+	public void shouldDetectEncodedAndDecodedActions() throws Exception {
+		assertEquals(Action.LOGOUT, SessionActionClassifier.actionIn("browse%3Aact=browse%3Alogout"));
+		assertEquals(Action.LOGIN, SessionActionClassifier.actionIn("browse%3aact=browse%3alogin"));
+		assertEquals(Action.LOGIN, SessionActionClassifier.actionIn("browse:login"));
+	}
+
+	@Test
+	public void shouldIgnoreOtherActions() throws Exception {
+		assertEquals(Action.NONE, SessionActionClassifier.actionIn("browse%3Aact=browse%3Aspace"));
+		assertEquals(Action.NONE, SessionActionClassifier.actionIn("login=logout"));
+		assertEquals(Action.NONE, SessionActionClassifier.actionIn("%3"));
+		assertEquals(Action.NONE, SessionActionClassifier.actionIn(null));
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.opensso;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpSession;
+
+public class SessionRegistryTest {
+
+	private SessionRegistry registry = new SessionRegistry();
+
+	@Test
+	public void shouldInvalidateOnlySessionsOfPrincipal() throws Exception {
+		MockHttpSession first = new MockHttpSession();
+		MockHttpSession second = new MockHttpSession();
+		MockHttpSession other = new MockHttpSession();
+		registry.register(first, "gfernandes", "token1");
+		registry.register(second, "gfernandes", "token2");
+		registry.register(other, "admin", "token3");
+
+		assertEquals(2, registry.invalidatePrincipal("gfernandes"));
+		assertTrue(first.isInvalid());
+		assertTrue(second.isInvalid());
+		assertFalse(other.isInvalid());
+		assertEquals(0, registry.getSessionCount("gfernandes"));
+		assertEquals(1, registry.getSessionCount("admin"));
+	}
+
+	@Test
+	public void shouldInvalidateSessionsOfToken() throws Exception {
+		MockHttpSession session = new MockHttpSession();
+		registry.register(session, "gfernandes", "token1");
+		registry.register(session, "gfernandes", "token2");
+
+		assertEquals(0, registry.invalidateToken("token1"));
+		assertEquals(1, registry.invalidateToken("token2"));
+		assertTrue(session.isInvalid());
+		assertEquals(0, registry.invalidatePrincipal("gfernandes"));
+	}
+
+	@Test
+	public void shouldForgetUnregisteredSessions() throws Exception {
+		MockHttpSession session = new MockHttpSession();
+		registry.register(session, "gfernandes", "token1");
+		registry.unregister(session);
+
+		assertEquals(0, registry.getSessionCount("gfernandes"));
+		assertEquals(0, registry.invalidateToken("token1"));
+		assertFalse(session.isInvalid());
+	}
+}
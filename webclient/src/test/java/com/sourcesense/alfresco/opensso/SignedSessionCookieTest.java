@@ -0,0 +1,56 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.opensso;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class SignedSessionCookieTest {
+
+	private static final long NOW = 1000000L;
+
+	private SignedSessionCookie signedCookie = new SignedSessionCookie("0123456789abcdef0123".getBytes(), "sig", 60000);
+
+	@Test
+	public void shouldVerifyOwnSignature() throws Exception {
+		String value = signedCookie.encode("gfernandes", "AQIC5wM2LY4Sfcz", NOW + 1000);
+		assertEquals("gfernandes", signedCookie.decode(value, "AQIC5wM2LY4Sfcz", NOW));
+	}
+
+	@Test
+	public void shouldRejectExpiredOrForeignSignatures() throws Exception {
+		String value = signedCookie.encode("gfernandes", "AQIC5wM2LY4Sfcz", NOW + 1000);
+		assertNull(signedCookie.decode(value, "AQIC5wM2LY4Sfcz", NOW + 1000));
+		assertNull(signedCookie.decode(value, "AQIC5wM2LY4Sfcy", NOW));
+
+		SignedSessionCookie otherKey = new SignedSessionCookie("fedcba9876543210fedc".getBytes(), "sig", 60000);
+		assertNull(otherKey.decode(value, "AQIC5wM2LY4Sfcz", NOW));
+	}
+
+	@Test
+	public void shouldRejectTamperedValues() throws Exception {
+		String value = signedCookie.encode("gfernandes", "AQIC5wM2LY4Sfcz", NOW + 1000);
+		String admin = value.replaceFirst("^[0-9a-f]+", "61646d696e");
+		assertNull(signedCookie.decode(admin, "AQIC5wM2LY4Sfcz", NOW));
+		String extended = value.replaceFirst("\\.[0-9a-f]+\\.", "." + Long.toHexString(NOW + 100000) + ".");
+		assertNull(signedCookie.decode(extended, "AQIC5wM2LY4Sfcz", NOW + 5000));
+		assertNull(signedCookie.decode("garbage", "AQIC5wM2LY4Sfcz", NOW));
+		assertNull(signedCookie.decode("zz.10.zz", "AQIC5wM2LY4Sfcz", NOW));
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.transaction;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.transaction.Status;
+import javax.transaction.UserTransaction;
+
+import org.alfresco.service.transaction.TransactionService;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Fake TransactionService whose user transactions drive Spring's transaction
+ * synchronization like Alfresco's do, so that transaction listeners fire on
+ * commit and rollback
+ * 
+ * @author g.fernandes@sourcesense.com
+ * 
+ */
+public class MockTransactionService implements InvocationHandler {
+
+	private final List<MockUserTransaction> transactions = new ArrayList<MockUserTransaction>();
+
+	private final TransactionService transactionService = (TransactionService) Proxy.newProxyInstance(getClass().getClassLoader(),
+			new Class[] { TransactionService.class }, this);
+
+	public TransactionService getTransactionService() {
+		return transactionService;
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if (method.getReturnType() == UserTransaction.class) {
+			MockUserTransaction tx = new MockUserTransaction(args != null && args.length > 0 && Boolean.TRUE.equals(args[0]));
+			synchronized (transactions) {
+				transactions.add(tx);
+			}
+			return tx;
+		}
+		return method.getReturnType() == Boolean.TYPE ? Boolean.FALSE : null;
+	}
+
+	public List<MockUserTransaction> getTransactions() {
+		synchronized (transactions) {
+			return new ArrayList<MockUserTransaction>(transactions);
+		}
+	}
+
+	public int getCommitCount() {
+		return countByStatus(Status.STATUS_COMMITTED);
+	}
+
+	public int getRollbackCount() {
+		return countByStatus(Status.STATUS_ROLLEDBACK);
+	}
+
+	private int countByStatus(int status) {
+		int count = 0;
+		for (MockUserTransaction tx : getTransactions()) {
+			if (tx.getStatus() == status) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public static class MockUserTransaction implements UserTransaction {
+
+		private final boolean readOnly;
+		private volatile int status = Status.STATUS_NO_TRANSACTION;
+
+		MockUserTransaction(boolean readOnly) {
+			this.readOnly = readOnly;
+		}
+
+		public boolean isReadOnly() {
+			return readOnly;
+		}
+
+		public void begin() {
+			if (status != Status.STATUS_NO_TRANSACTION) {
+				throw new IllegalStateException("Transaction already begun");
+			}
+			TransactionSynchronizationManager.initSynchronization();
+			status = Status.STATUS_ACTIVE;
+		}
+
+		public void commit() {
+			if (status == Status.STATUS_MARKED_ROLLBACK) {
+				rollback();
+				throw new IllegalStateException("Transaction marked for rollback");
+			}
+			assertActive();
+			List<?> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+			for (Object synchronization : synchronizations) {
+				((TransactionSynchronization) synchronization).beforeCommit(readOnly);
+			}
+			complete(synchronizations, Status.STATUS_COMMITTED, TransactionSynchronization.STATUS_COMMITTED);
+		}
+
+		public void rollback() {
+			if (status != Status.STATUS_MARKED_ROLLBACK) {
+				assertActive();
+			}
+			complete(TransactionSynchronizationManager.getSynchronizations(), Status.STATUS_ROLLEDBACK, TransactionSynchronization.STATUS_ROLLED_BACK);
+		}
+
+		private void complete(List<?> synchronizations, int finalStatus, int completion) {
+			for (Object synchronization : synchronizations) {
+				((TransactionSynchronization) synchronization).beforeCompletion();
+			}
+			TransactionSynchronizationManager.clearSynchronization();
+			status = finalStatus;
+			for (Object synchronization : synchronizations) {
+				((TransactionSynchronization) synchronization).afterCompletion(completion);
+			}
+		}
+
+		private void assertActive() {
+			if (status != Status.STATUS_ACTIVE) {
+				throw new IllegalStateException("No active transaction");
+			}
+		}
+
+		public void setRollbackOnly() {
+			assertActive();
+			status = Status.STATUS_MARKED_ROLLBACK;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		public void setTransactionTimeout(int seconds) {
+		}
+	}
+}
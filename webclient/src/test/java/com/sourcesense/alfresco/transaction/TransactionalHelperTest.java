@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sourcesense.alfresco.transaction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import javax.transaction.Status;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sourcesense.alfresco.monitor.AuthenticationMetrics;
+import com.sourcesense.alfresco.monitor.AuthenticationMetrics.Counter;
+import com.sourcesense.alfresco.transaction.MockTransactionService.MockUserTransaction;
+
+public class TransactionalHelperTest {
+
+	private MockTransactionService transactionService;
+	private TransactionalHelper helper;
+	private AuthenticationMetrics metrics;
+
+	@Before
+	public void setUp() throws Exception {
+		transactionService = new MockTransactionService();
+		helper = new TransactionalHelper(transactionService.getTransactionService());
+		metrics = AuthenticationMetrics.getInstance();
+		metrics.reset();
+	}
+
+	@Test
+	public void shouldCommitTheResultOfTheCallback() throws Exception {
+		Object result = helper.doInTransaction(new Transactionable() {
+			public Object execute() {
+				assertTrue(helper.isTransactionActive());
+				return "done";
+			}
+		});
+
+		assertEquals("done", result);
+		assertFalse(helper.isTransactionActive());
+		assertEquals(1, transactionService.getTransactions().size());
+		assertEquals(1, transactionService.getCommitCount());
+		assertFalse(transactionService.getTransactions().get(0).isReadOnly());
+		assertEquals(1, metrics.getCount(Counter.TRANSACTION_COMMITS));
+		assertEquals(0, metrics.getCount(Counter.TRANSACTION_ROLLBACKS));
+	}
+
+	@Test
+	public void shouldBeginReadOnlyTransactions() throws Exception {
+		helper.doInReadOnlyTransaction(new Transactionable() {
+			public Object execute() {
+				return null;
+			}
+		});
+
+		assertEquals(1, transactionService.getTransactions().size());
+		assertTrue(transactionService.getTransactions().get(0).isReadOnly());
+		assertEquals(1, transactionService.getCommitCount());
+	}
+
+	@Test
+	public void shouldJoinTheActiveTransactionWithoutCommittingIt() throws Exception {
+		helper.doInTransaction(new Transactionable() {
+			public Object execute() {
+				MockUserTransaction outer = transactionService.getTransactions().get(0);
+				helper.doInReadOnlyTransaction(new Transactionable() {
+					public Object execute() {
+						return null;
+					}
+				});
+				assertEquals(1, transactionService.getTransactions().size());
+				assertEquals(Status.STATUS_ACTIVE, outer.getStatus());
+				assertTrue(helper.isTransactionActive());
+				return null;
+			}
+		});
+
+		assertEquals(1, transactionService.getCommitCount());
+		assertFalse(transactionService.getTransactions().get(0).isReadOnly());
+		assertEquals(1, metrics.getCount(Counter.JOINED_TRANSACTIONS));
+		assertEquals(1, metrics.getCount(Counter.TRANSACTION_COMMITS));
+	}
+
+	@Test
+	public void shouldRollbackTheOuterTransactionWhenTheJoinedOneFails() throws Exception {
+		final IllegalStateException failure = new IllegalStateException("inner failure");
+		try {
+			helper.doInTransaction(new Transactionable() {
+				public Object execute() {
+					return helper.doInTransaction(new Transactionable() {
+						public Object execute() {
+							throw failure;
+						}
+					});
+				}
+			});
+			fail("The failure of the joined block should propagate");
+		} catch (IllegalStateException e) {
+			assertSame(failure, e);
+		}
+
+		assertFalse(helper.isTransactionActive());
+		assertEquals(1, transactionService.getTransactions().size());
+		assertEquals(1, transactionService.getRollbackCount());
+		assertEquals(0, transactionService.getCommitCount());
+		assertEquals(1, metrics.getCount(Counter.JOINED_TRANSACTIONS));
+		assertEquals(0, metrics.getCount(Counter.TRANSACTION_COMMITS));
+		assertEquals(1, metrics.getCount(Counter.TRANSACTION_ROLLBACKS));
+	}
+
+	@Test
+	public void shouldWrapFailuresThatAreNotRuntimeExceptions() throws Exception {
+		try {
+			helper.doInTransaction(new Transactionable() {
+				public Object execute() {
+					throw new AssertionError("unexpected");
+				}
+			});
+			fail("The failure should propagate");
+		} catch (RuntimeException e) {
+			assertTrue(e.getCause() instanceof AssertionError);
+		}
+
+		assertEquals(1, transactionService.getRollbackCount());
+		assertEquals(1, metrics.getCount(Counter.TRANSACTION_ROLLBACKS));
+	}
+}